@@ -0,0 +1,118 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares SwerveKinematics with WPILib's SwerveDriveKinematics on one cycle's worth of work. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SwerveKinematicsBenchmark {
+  private final SwerveKinematics kinematics = new SwerveKinematics(Drive.getModuleTranslations());
+  private final SwerveDriveKinematics wpilib =
+      new SwerveDriveKinematics(Drive.getModuleTranslations());
+
+  private final ChassisSpeeds chassisSpeeds = new ChassisSpeeds(2.0, -1.0, 3.0);
+  private final double[] speeds = new double[4];
+  private final double[] angles = new double[4];
+  private final double[] distances = new double[4];
+  private final double[] result = new double[3];
+  private final SwerveModuleState[] states = new SwerveModuleState[4];
+  private final SwerveModulePosition[] deltas = new SwerveModulePosition[4];
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < 4; i++) {
+      speeds[i] = 1.0 + i * 0.5;
+      angles[i] = i * 0.7 - 1.0;
+      distances[i] = speeds[i] * 0.004;
+      states[i] = new SwerveModuleState(speeds[i], new Rotation2d(angles[i]));
+      deltas[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+    }
+  }
+
+  @Benchmark
+  public SwerveModuleState[] wpilibToSwerveModuleStates() {
+    return wpilib.toSwerveModuleStates(chassisSpeeds);
+  }
+
+  @Benchmark
+  public double[] toModuleStates() {
+    kinematics.toModuleStates(
+        chassisSpeeds.vxMetersPerSecond,
+        chassisSpeeds.vyMetersPerSecond,
+        chassisSpeeds.omegaRadiansPerSecond,
+        speeds,
+        angles);
+    return speeds;
+  }
+
+  @Benchmark
+  public ChassisSpeeds wpilibToChassisSpeeds() {
+    return wpilib.toChassisSpeeds(states);
+  }
+
+  @Benchmark
+  public double[] toChassisSpeeds() {
+    kinematics.toChassisSpeeds(speeds, angles, result);
+    return result;
+  }
+
+  @Benchmark
+  public Twist2d wpilibToTwist2d() {
+    return wpilib.toTwist2d(deltas);
+  }
+
+  @Benchmark
+  public double[] toTwist2d() {
+    kinematics.toTwist2d(distances, angles, result);
+    return result;
+  }
+
+  @Benchmark
+  public ChassisSpeeds wpilibDiscretize() {
+    return ChassisSpeeds.discretize(chassisSpeeds, 0.02);
+  }
+
+  @Benchmark
+  public double[] discretize() {
+    SwerveKinematics.discretize(
+        chassisSpeeds.vxMetersPerSecond,
+        chassisSpeeds.vyMetersPerSecond,
+        chassisSpeeds.omegaRadiansPerSecond,
+        0.02,
+        result);
+    return result;
+  }
+}
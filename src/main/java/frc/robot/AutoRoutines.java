@@ -0,0 +1,118 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot;
+
+import com.pathplanner.lib.auto.AutoBuilder;
+import com.pathplanner.lib.commands.PathPlannerAuto;
+import com.pathplanner.lib.path.PathPlannerPath;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj2.command.Command;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.littletonrobotics.junction.Logger;
+import org.littletonrobotics.junction.networktables.LoggedDashboardChooser;
+
+/**
+ * Builds the PathPlanner autos in the deploy directory before they're needed, so autonomous starts
+ * without building commands or running path code for the first time.
+ *
+ * <p>A background thread parses every path used by the autos and generates its trajectories for
+ * both alliances. The results are thrown away: this only loads and warms up the parsing and
+ * generation code off the main thread. Commands are only created on the main thread, since command
+ * composition registers with the scheduler, so {@link #periodic()} then builds one auto per cycle
+ * while disabled, parsing its files again. The drive has to be registered with {@link AutoBuilder}
+ * before this is created.
+ */
+public class AutoRoutines {
+  private static final String noAuto = "None";
+
+  private final LoggedDashboardChooser<String> chooser =
+      new LoggedDashboardChooser<>("Auto Choices");
+  private final List<String> autoNames;
+  private final Map<String, Command> autos = new HashMap<>();
+  private final Thread preloadThread;
+  private volatile boolean preloaded = false;
+  private volatile double preloadMs = 0.0; // Written by the preload thread, logged by the main one
+  private boolean preloadLogged = false;
+
+  public AutoRoutines() {
+    autoNames = AutoBuilder.getAllAutoNames();
+    chooser.addDefaultOption(noAuto, noAuto);
+    for (String name : autoNames) {
+      chooser.addOption(name, name);
+    }
+
+    preloadThread = new Thread(this::preload, "AutoPreload");
+    preloadThread.setDaemon(true);
+    preloadThread.start();
+  }
+
+  /** Builds the next auto once the paths are preloaded. Call every cycle while disabled. */
+  public void periodic() {
+    if (!preloaded) {
+      return;
+    }
+    if (!preloadLogged) {
+      // Logged values are kept until they're recorded again, so once is enough
+      Logger.recordOutput("Auto/PreloadMs", preloadMs);
+      preloadLogged = true;
+    }
+    if (autos.size() == autoNames.size()) {
+      return;
+    }
+    for (String name : autoNames) {
+      if (!autos.containsKey(name)) {
+        autos.put(name, buildAuto(name));
+        break;
+      }
+    }
+    Logger.recordOutput("Auto/Built", autos.size());
+  }
+
+  /** Returns the selected auto, or null if none is selected. */
+  public Command getSelected() {
+    String name = chooser.get();
+    if (name == null || name.equals(noAuto)) {
+      return null;
+    }
+    // Built now if autonomous started before the auto was preloaded
+    return autos.computeIfAbsent(name, this::buildAuto);
+  }
+
+  private Command buildAuto(String name) {
+    long startTime = Logger.getRealTimestamp();
+    Command auto = AutoBuilder.buildAuto(name);
+    Logger.recordOutput("Auto/BuildMs/" + name, (Logger.getRealTimestamp() - startTime) / 1e3);
+    return auto;
+  }
+
+  private void preload() {
+    long startTime = Logger.getRealTimestamp();
+    for (String name : autoNames) {
+      try {
+        for (PathPlannerPath path : PathPlannerAuto.getPathGroupFromAutoFile(name)) {
+          path.getTrajectory(new ChassisSpeeds(), new Rotation2d());
+          path.flipPath().getTrajectory(new ChassisSpeeds(), new Rotation2d());
+        }
+      } catch (RuntimeException e) {
+        DriverStation.reportError("Failed to preload auto \"" + name + "\"", e.getStackTrace());
+      }
+    }
+    preloadMs = (Logger.getRealTimestamp() - startTime) / 1e3;
+    preloaded = true;
+  }
+}
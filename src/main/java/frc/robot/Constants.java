@@ -13,7 +13,12 @@
 
 package frc.robot;
 
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.apriltag.AprilTagFields;
 import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Rotation3d;
+import edu.wpi.first.math.geometry.Transform3d;
+import edu.wpi.first.math.geometry.Translation3d;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.simulation.SingleJointedArmSim;
 
@@ -126,12 +131,57 @@ public final class Constants {
     public static final double odometeryFrequency = 250;
     public static final double updateFrequency = 100;
 
+    // Real-time priority for the odometry sampling threads (1-99, higher runs first)
+    public static final boolean odometryThreadRealTime = true;
+    public static final int odometryThreadPriority = 10;
+
+    // Adaptive odometry rate, lowered when the CAN bus is saturated or samples fail to read
+    public static final boolean adaptiveOdometryFrequency = true;
+    public static final double minOdometryFrequency = 100;
+    public static final double maxOdometryFrequency = odometeryFrequency;
+    public static final double odometryFrequencyStep = 25;
+    public static final double odometryFrequencyPeriodSecs = 1.0;
+    public static final double highBusUtilization = 0.85;
+    public static final double lowBusUtilization = 0.65;
+    public static final double maxInvalidSampleFraction = 0.02;
+
+    // Estimated poses kept for timestamped lookups, about four seconds at the odometry rate
+    public static final int poseHistoryCapacity = 1024;
+    public static final double maxPoseExtrapolationSecs = 0.25;
+
+    // Wheel slip rejection, a module is slipping when its displacement in one odometry sample is
+    // further than this from the rigid-body motion fit to the other modules and the gyro
+    public static final boolean wheelSlipRejection = true;
+    public static final double slipMinErrorMeters = 0.002;
+    public static final double slipErrorRatio = 0.25; // Fraction of the module's fit displacement
+
+    // Apply drive outputs on the next Phoenix timesync boundary, so all four modules change output
+    // together. Requires Phoenix Pro and the drive motors on a CANivore.
+    public static final boolean driveOutputTimesync = false;
+
+    // Turn encoder reseeding, the relative encoder is reset to the absolute encoder when they
+    // disagree by more than the threshold for the debounce time while the module is nearly still
+    public static final double turnReseedThresholdRad = Units.degreesToRadians(2.0);
+    public static final double turnReseedMaxVelocityRadPerSec = 0.1;
+    public static final double turnReseedDebounceSecs = 0.1;
+
     public static final double maxLinearVelocity = Units.feetToMeters(20.4);
     // public static final double maxLinearVelocity = Units.feetToMeters(1.4);
     public static final double maxLinearAccel = 8.0;
 
     public static final double maxAngularVelocity = 20;
     public static final double maxAngularAccel = 10;
+    public static final double maxSteerVelocity = Units.rotationsToRadians(5);
+
+    // Optional drive control loop that writes module setpoints between scheduler cycles. Commands
+    // only update the target, so setpoints follow the newest heading with less latency.
+    public static final boolean fastControlLoop = false;
+    public static final double fastControlFrequency = 200; // Clamped to 100-250 Hz
+    public static final boolean fastControlThreadRealTime = true;
+    public static final int fastControlThreadPriority = 9; // Below the odometry threads
+
+    // Skip the teleop command's debug outputs, leaving only the allocation measurement
+    public static final boolean teleopHotPath = false;
 
     public static double kPDriveReal = 2.0;
     public static double kDDriveReal = 0.2;
@@ -159,6 +209,10 @@ public final class Constants {
 
     public static double kPTurnReplay = 0.0;
     public static double kDTurnReplay = 0.0;
+
+    // Path following feedback, per meter and per radian of error
+    public static final double kPAutoTranslation = 5.0;
+    public static final double kPAutoRotation = 5.0;
   }
 
   public static class ClimbConstants {
@@ -304,6 +358,50 @@ public final class Constants {
     public static final double kSShooterReplay = 0.0;
   }
 
+  public static class VisionConstants {
+    public static final AprilTagFieldLayout fieldLayout =
+        AprilTagFields.k2024Crescendo.loadAprilTagLayoutField();
+
+    public static final String[] cameraNames = new String[] {"FrontCamera", "BackCamera"};
+    public static final Transform3d[] robotToCameras =
+        new Transform3d[] { // MUST BE CALIBRATED
+          new Transform3d(
+              new Translation3d(Units.inchesToMeters(10.0), 0.0, Units.inchesToMeters(8.0)),
+              new Rotation3d(0.0, -Units.degreesToRadians(25.0), 0.0)),
+          new Transform3d(
+              new Translation3d(Units.inchesToMeters(-10.0), 0.0, Units.inchesToMeters(8.0)),
+              new Rotation3d(0.0, -Units.degreesToRadians(25.0), Math.PI))
+        };
+
+    // How often the vision thread checks the cameras for new results
+    public static final double pollPeriodSecs = 0.01;
+
+    // Standard deviations of a solve one meter from one tag, scaled up with distance and ambiguity
+    // and down with the number of tags. Single tag rotation is not trusted.
+    public static final double linearStdDev = 0.5; // Meters
+    public static final double angularStdDev = 1.0; // Radians
+    public static final double ambiguityStdDevFactor = 3.0;
+    public static final double linearSpeedStdDevFactor = 0.5; // Per meter per second
+    public static final double angularSpeedStdDevFactor = 0.5; // Per radian per second
+    // Floors for the scaled standard deviations, so a close tag never fully replaces the estimate
+    public static final double minLinearStdDev = 0.02; // Meters
+    public static final double minAngularStdDev = 0.02; // Radians
+
+    // Measurement gating
+    public static final double maxAmbiguity = 0.3;
+    public static final double fieldBorderMargin = 0.5; // Meters
+    public static final double maxZError = 0.75; // Meters
+    public static final double maxMahalanobisDistanceSquared = 11.34; // 99% chi-squared, 3 DOF
+    // Used when the measurement has no rotation
+    public static final double maxTranslationMahalanobisDistanceSquared = 9.21; // 2 DOF
+    // The distance gate is skipped until a measurement has been accepted this recently, so the
+    // estimate can recover after drifting out of it
+    public static final double mahalanobisTimeoutSecs = 2.0;
+    // While the distance gate is skipped, only multi-tag solves or single tag solves at most this
+    // ambiguous are accepted
+    public static final double maxRecoveryAmbiguity = 0.1;
+  }
+
   public static class SimConstants {
     public static final double loopTime = 0.02;
   }
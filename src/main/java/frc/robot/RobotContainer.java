@@ -14,7 +14,6 @@
 package frc.robot;
 
 import edu.wpi.first.math.MathUtil;
-import edu.wpi.first.math.kinematics.ChassisSpeeds;
 import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.GenericHID;
 import edu.wpi.first.wpilibj.XboxController;
@@ -52,6 +51,10 @@ import frc.robot.subsystems.shooter.Shooter;
 import frc.robot.subsystems.shooter.ShooterIOReplay;
 import frc.robot.subsystems.shooter.ShooterIOSim;
 import frc.robot.subsystems.shooter.ShooterIOSparkMax;
+import frc.robot.subsystems.vision.Vision;
+import frc.robot.subsystems.vision.VisionIOPhotonVision;
+import frc.robot.subsystems.vision.VisionIOReplay;
+import frc.robot.subsystems.vision.VisionIOSim;
 
 /**
  * This class is where the bulk of the robot should be declared. Since Command-based is a
@@ -71,7 +74,9 @@ public class RobotContainer {
   private final Feeder m_feeder;
   private final Pivot m_pivot;
   private final Shooter m_shooter;
+  private final Vision m_vision;
   private final Visualizer m_visualizer;
+  private final AutoRoutines m_autos;
 
   // Controller
   private final CommandXboxController m_driver = new CommandXboxController(0);
@@ -101,6 +106,7 @@ public class RobotContainer {
                 new BeambreakIOReal(RobotMap.Shooter.shooterBeambreak));
         m_pivot = new Pivot(new PivotIOSparkMax());
         m_shooter = new Shooter(new ShooterIOSparkMax());
+        m_vision = new Vision(new VisionIOPhotonVision());
         break;
 
       case SIM:
@@ -121,6 +127,7 @@ public class RobotContainer {
                 new BeambreakIOSim(RobotMap.Shooter.shooterBeambreak));
         m_pivot = new Pivot(new PivotIOSim());
         m_shooter = new Shooter(new ShooterIOSim());
+        m_vision = new Vision(new VisionIOSim(m_drive::getSimulatedPose));
         break;
 
       default:
@@ -138,9 +145,13 @@ public class RobotContainer {
             new Feeder(new FeederIOReplay(), new BeambreakIOReplay(), new BeambreakIOReplay());
         m_pivot = new Pivot(new PivotIOReplay());
         m_shooter = new Shooter(new ShooterIOReplay());
+        m_vision = new Vision(new VisionIOReplay());
         break;
     }
+    m_drive.setVision(m_vision);
     m_visualizer = new Visualizer(m_climber, m_intake, m_pivot);
+    // The drive registers itself with PathPlanner, so autos are loaded after it's created
+    m_autos = new AutoRoutines();
     // Configure the button bindings
     configureButtonBindings();
   }
@@ -156,12 +167,9 @@ public class RobotContainer {
     // Driver Controller
     m_drive.setDefaultCommand(
         m_drive.runVoltageTeleopFieldRelative(
-            () ->
-                new ChassisSpeeds(
-                    -teleopAxisAdjustment(m_driver.getLeftY()) * DriveConstants.maxLinearVelocity,
-                    -teleopAxisAdjustment(m_driver.getLeftX()) * DriveConstants.maxLinearVelocity,
-                    -teleopAxisAdjustment(m_driver.getRightX())
-                        * DriveConstants.maxLinearVelocity)));
+            () -> -teleopAxisAdjustment(m_driver.getLeftY()) * DriveConstants.maxLinearVelocity,
+            () -> -teleopAxisAdjustment(m_driver.getLeftX()) * DriveConstants.maxLinearVelocity,
+            () -> -teleopAxisAdjustment(m_driver.getRightX()) * DriveConstants.maxLinearVelocity));
 
     m_intake.setDefaultCommand(m_intake.setIntakeUp());
 
@@ -322,12 +330,12 @@ public class RobotContainer {
     return MathUtil.applyDeadband(x, 0.02);
   }
 
-  public Command getAutonomousCommand() {
-    // TODO Auto-generated method stub
-    return null;
+  /** Preloads autos while disabled. */
+  public void disabledPeriodic() {
+    m_autos.periodic();
   }
 
-  //   public Command getAutonomousCommand() {
-  //     return ;
-  //   }
+  public Command getAutonomousCommand() {
+    return m_autos.getSelected();
+  }
 }
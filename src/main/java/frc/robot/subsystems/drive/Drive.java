@@ -13,47 +13,145 @@
 
 package frc.robot.subsystems.drive;
 
-import com.google.common.collect.Streams;
+import com.pathplanner.lib.auto.AutoBuilder;
+import com.pathplanner.lib.util.HolonomicPathFollowerConfig;
+import com.pathplanner.lib.util.PIDConstants;
+import com.pathplanner.lib.util.PathPlannerLogging;
+import com.pathplanner.lib.util.ReplanningConfig;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.Matrix;
-import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
 import edu.wpi.first.math.geometry.Pose2d;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.geometry.Translation2d;
 import edu.wpi.first.math.geometry.Twist2d;
 import edu.wpi.first.math.kinematics.ChassisSpeeds;
-import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.kinematics.SwerveModuleState;
 import edu.wpi.first.math.numbers.N1;
 import edu.wpi.first.math.numbers.N3;
 import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.DriverStation.Alliance;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.robot.Constants;
 import frc.robot.Constants.DriveConstants;
-import java.util.Arrays;
+import frc.robot.Constants.VisionConstants;
+import frc.robot.subsystems.vision.Vision;
+import frc.robot.subsystems.vision.Vision.VisionConsumer;
+import frc.util.AllocationCounter;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleSupplier;
 import java.util.function.Supplier;
 import org.littletonrobotics.junction.AutoLogOutput;
 import org.littletonrobotics.junction.Logger;
 
 public class Drive extends SubsystemBase {
-  static final Lock odometryLock = new ReentrantLock();
   private final GyroIO gyroIO;
   private final GyroIOInputsAutoLogged gyroInputs = new GyroIOInputsAutoLogged();
   private final Module[] modules = new Module[4]; // FL, FR, BL, BR
 
-  private SwerveDriveKinematics kinematics = new SwerveDriveKinematics(getModuleTranslations());
-  private Rotation2d rawGyroRotation = new Rotation2d();
-  private SwerveModulePosition[] lastModulePositions = // For delta tracking
-      new SwerveModulePosition[] {
-        new SwerveModulePosition(),
-        new SwerveModulePosition(),
-        new SwerveModulePosition(),
-        new SwerveModulePosition()
-      };
-  private SwerveDrivePoseEstimator poseEstimator =
-      new SwerveDrivePoseEstimator(kinematics, rawGyroRotation, lastModulePositions, new Pose2d());
+  private final SwerveKinematics kinematics = new SwerveKinematics(getModuleTranslations());
+  private final double[] chassisVelocity = new double[3];
+  private final SwerveSetpointGenerator setpointGenerator =
+      new SwerveSetpointGenerator(
+          getModuleTranslations(),
+          DriveConstants.maxLinearVelocity,
+          DriveConstants.maxLinearAccel,
+          DriveConstants.maxAngularVelocity,
+          DriveConstants.maxAngularAccel,
+          DriveConstants.maxSteerVelocity);
+  private final WheelSlipFilter slipFilter =
+      new WheelSlipFilter(
+          getModuleTranslations(),
+          DriveConstants.slipMinErrorMeters,
+          DriveConstants.slipErrorRatio);
+  private static final SwerveModuleState[] emptyModuleStates = new SwerveModuleState[] {};
+
+  private final OdometryRateController odometryRateController =
+      new OdometryRateController(HybridOdometryThread.getInstance());
+
+  private final SwervePoseEstimator poseEstimator =
+      new SwervePoseEstimator(
+          kinematics,
+          new Rotation2d(),
+          new SwerveModulePosition[] {
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition()
+          },
+          new Pose2d());
+  private final OdometryIntegrator odometry =
+      new OdometryIntegrator(kinematics, slipFilter, poseEstimator);
+  // Each module's odometry arrays for this cycle, filled in place
+  private final double[][] odometryDrivePositions = new double[4][];
+  private final double[][] odometryTurnPositions = new double[4][];
+
+  private final PoseHistory poseHistory =
+      new PoseHistory(DriveConstants.poseHistoryCapacity, DriveConstants.maxPoseExtrapolationSecs);
+  private final double[] historyPose = new double[3];
+
+  // Sim only, the pose from the simulated module positions alone. The simulated cameras view the
+  // field from here, so vision corrects the estimate toward the sim's ground truth rather than
+  // toward itself.
+  private Pose2d simPose = new Pose2d();
+  private final double[] simLastPositions = new double[4];
+  private final double[] simPositionDeltas = new double[4];
+  private final double[] simTwist = new double[3];
+
+  private Vision vision = null;
+  private final VisionMeasurementGate visionGate = new VisionMeasurementGate(poseEstimator);
+  private final VisionConsumer visionConsumer = visionGate::addObservation;
+
+  // Fast control loop, null when disabled. The lock guards the module setpoint state, the setpoint
+  // generator and the control fields below, which are shared between the main loop and the control
+  // thread. It's only held to exchange values and run setpoints, never while reading inputs.
+  private final DriveControlLoop controlLoop;
+  private final Lock controlLock = new ReentrantLock();
+  private boolean controlTargetActive = false;
+  private double controlTargetVx = 0.0; // Field-relative
+  private double controlTargetVy = 0.0;
+  private double controlTargetOmega = 0.0;
+  private boolean controlTargetDirect = false; // Path targets skip the setpoint generator
+  private double controlYaw = 0.0;
+  private double controlYawRate = 0.0;
+  private double controlYawTimestamp = 0.0;
+  private final double[] controlSpeeds = new double[3];
+  private final double[] controlModuleSpeeds = new double[4];
+  private final double[] controlModuleAngles = new double[4];
+
+  // Teleop scratch and logged objects, reused every cycle. Struct outputs are serialized when they
+  // are recorded, so the logged objects can be modified afterwards.
+  private final double[] teleopSpeeds = new double[3];
+  private final ChassisSpeeds loggedControlTarget = new ChassisSpeeds();
+  private final ChassisSpeeds loggedTargetSpeeds = new ChassisSpeeds();
+  private final ChassisSpeeds loggedSetpointSpeeds = new ChassisSpeeds();
+  private final ChassisSpeeds loggedSpeedError = new ChassisSpeeds();
+  private final ChassisSpeeds loggedFieldTargetSpeeds = new ChassisSpeeds();
+  private final LoggedModuleState[] loggedSetpointStates = {
+    new LoggedModuleState(),
+    new LoggedModuleState(),
+    new LoggedModuleState(),
+    new LoggedModuleState()
+  };
+  private final LoggedModuleState[] loggedOptimizedStates = {
+    new LoggedModuleState(),
+    new LoggedModuleState(),
+    new LoggedModuleState(),
+    new LoggedModuleState()
+  };
+
+  private final AtomicReference<RobotState> robotState = new AtomicReference<>(RobotState.empty);
+  private final double[] moduleSpeeds = new double[4];
+  private final double[] moduleAngles = new double[4];
+
+  // Path following scratch, reused every cycle
+  private final double[] pathSpeeds = new double[3];
+  private final double[] pathModuleSpeeds = new double[4];
+  private final double[] pathModuleAngles = new double[4];
 
   public Drive(
       GyroIO gyroIO,
@@ -67,66 +165,180 @@ public class Drive extends SubsystemBase {
     modules[2] = new Module(blModuleIO, 2);
     modules[3] = new Module(brModuleIO, 3);
 
+    // The control thread isn't replayed, so replay uses the main loop
+    if (DriveConstants.fastControlLoop && Constants.currentMode != Constants.Mode.REPLAY) {
+      controlLoop =
+          new DriveControlLoop(
+              "DriveControlLoop", this::runControlLoop, DriveConstants.fastControlFrequency);
+    } else {
+      controlLoop = null;
+    }
+
+    AutoBuilder.configureHolonomic(
+        this::getPose,
+        this::setPose,
+        this::getRobotRelativeVelocity,
+        this::runVelocity,
+        new HolonomicPathFollowerConfig(
+            new PIDConstants(DriveConstants.kPAutoTranslation, 0.0, 0.0),
+            new PIDConstants(DriveConstants.kPAutoRotation, 0.0, 0.0),
+            DriveConstants.maxLinearVelocity,
+            getModuleTranslations()[0].getNorm(),
+            new ReplanningConfig()),
+        () -> DriverStation.getAlliance().orElse(Alliance.Blue) == Alliance.Red,
+        this);
+    PathPlannerLogging.setLogActivePathCallback(
+        (activePath) ->
+            Logger.recordOutput(
+                "Odometry/Trajectory", activePath.toArray(new Pose2d[activePath.size()])));
+    PathPlannerLogging.setLogTargetPoseCallback(
+        (targetPose) -> Logger.recordOutput("Odometry/TrajectorySetpoint", targetPose));
+
     // Start threads (no-op for each if no signals have been created)
-    // HybridOdometryThread.getInstance().start();
+    HybridOdometryThread.getInstance().start();
     // SparkMaxOdometryThread.getInstance().start();
     // PhoenixOdometryThread.getInstance().start();
-
+    if (controlLoop != null) {
+      controlLoop.start();
+    }
   }
 
   public void periodic() {
-    odometryLock.lock(); // Prevents odometry updates while reading data
+    // Every IO drains the same snapshot of odometry samples, without blocking the odometry threads.
+    // Each thread has its own sequence, so latch every one an IO might have registered with.
+    HybridOdometryThread.getInstance().latchSamples();
+    SparkMaxOdometryThread.getInstance().latchSamples();
+    PhoenixOdometryThread.getInstance().latchSamples();
+    // The inputs are read without the control lock, since the reads can block on the CAN bus. The
+    // control thread only sees the values swapped in below.
     gyroIO.processInputs(gyroInputs);
     for (var module : modules) {
       module.processInputs();
     }
-    odometryLock.unlock();
     Logger.processInputs("Drive/Gyro", gyroInputs);
     for (var module : modules) {
       module.periodic();
     }
-
-    // Stop moving when disabled
-    if (DriverStation.isDisabled()) {
+    controlLock.lock();
+    try {
       for (var module : modules) {
-        module.stop();
+        module.swapControlState();
+      }
+      controlYaw = gyroInputs.yawPosition.getRadians();
+      controlYawRate = gyroInputs.yawVelocityRadPerSec;
+      controlYawTimestamp = Logger.getRealTimestamp() / 1e6;
+
+      // Stop moving when disabled
+      if (DriverStation.isDisabled()) {
+        for (var module : modules) {
+          module.stop();
+        }
       }
+    } finally {
+      controlLock.unlock();
     }
     // Log empty setpoint states when disabled
     if (DriverStation.isDisabled()) {
-      Logger.recordOutput("SwerveStates/Setpoints", new SwerveModuleState[] {});
-      Logger.recordOutput("SwerveStates/SetpointsOptimized", new SwerveModuleState[] {});
+      Logger.recordOutput("SwerveStates/Setpoints", emptyModuleStates);
+      Logger.recordOutput("SwerveStates/SetpointsOptimized", emptyModuleStates);
     }
 
     double[] sampleTimestamps =
         modules[0].getOdometryTimestamps(); // All signals are sampled together
     int sampleCount = sampleTimestamps.length;
+    for (int i = 0; i < 4; i++) {
+      odometryDrivePositions[i] = modules[i].getOdometryDrivePositionsMeters();
+      odometryTurnPositions[i] = modules[i].getOdometryTurnPositionsRad();
+    }
+    odometry.integrate(
+        sampleTimestamps,
+        sampleCount,
+        odometryDrivePositions,
+        odometryTurnPositions,
+        gyroInputs.connected,
+        gyroInputs.odometryYawTimestamps,
+        gyroInputs.odometryYawPositions,
+        gyroInputs.yawPosition.getRadians());
+    if (Constants.currentMode == Constants.Mode.SIM) {
+      updateSimulatedPose();
+    }
+
+    // Measured velocity, preferring the gyro's yaw rate when it is available
+    for (int i = 0; i < 4; i++) {
+      moduleSpeeds[i] = modules[i].getVelocityMetersPerSec();
+      moduleAngles[i] = modules[i].getAngle().getRadians();
+    }
+    kinematics.toChassisSpeeds(moduleSpeeds, moduleAngles, chassisVelocity);
+    double robotVx = chassisVelocity[0];
+    double robotVy = chassisVelocity[1];
+    double omegaRadPerSec =
+        gyroInputs.connected ? gyroInputs.yawVelocityRadPerSec : chassisVelocity[2];
+
+    // Apply the camera poses received since the last cycle on top of the new odometry
+    if (vision != null) {
+      visionGate.setRobotSpeed(Math.hypot(robotVx, robotVy), omegaRadPerSec);
+      vision.processInputs();
+      vision.applyMeasurements(visionConsumer);
+    }
+    visionGate.recordOutput("Vision/Gate");
+    slipFilter.recordOutput("Odometry/Slip");
+
+    // Rotate the velocity into the frame of the corrected pose
+    Pose2d pose = poseEstimator.getEstimatedPosition();
+    double cos = pose.getRotation().getCos();
+    double sin = pose.getRotation().getSin();
+    double fieldVx = robotVx * cos - robotVy * sin;
+    double fieldVy = robotVx * sin + robotVy * cos;
+
+    // Publish this cycle's corrected poses for lookups from other threads
     for (int i = 0; i < sampleCount; i++) {
-      // Read wheel positions and deltas from each module
-      SwerveModulePosition[] modulePositions = new SwerveModulePosition[4];
-      SwerveModulePosition[] moduleDeltas = new SwerveModulePosition[4];
-      for (int moduleIndex = 0; moduleIndex < 4; moduleIndex++) {
-        modulePositions = getModulePositions();
-        moduleDeltas[moduleIndex] =
-            new SwerveModulePosition(
-                modulePositions[moduleIndex].distanceMeters
-                    - lastModulePositions[moduleIndex].distanceMeters,
-                modulePositions[moduleIndex].angle);
-        lastModulePositions[moduleIndex] = modulePositions[moduleIndex];
+      if (poseEstimator.getPoseAt(sampleTimestamps[i], historyPose)) {
+        poseHistory.addPose(sampleTimestamps[i], historyPose[0], historyPose[1], historyPose[2]);
       }
+    }
+    poseHistory.setVelocity(fieldVx, fieldVy, omegaRadPerSec);
+    robotState.set(
+        new RobotState(
+            robotState.get().getVersion() + 1,
+            Logger.getTimestamp() / 1e6,
+            pose,
+            fieldVx,
+            fieldVy,
+            robotVx,
+            robotVy,
+            omegaRadPerSec,
+            moduleSpeeds,
+            moduleAngles));
+    Logger.recordOutput("Drive/StateVersion", robotState.get().getVersion());
+    if (controlLoop != null) {
+      controlLoop.recordOutput("Drive/ControlLoop");
+    }
 
-      // Update gyro angle
-      if (gyroInputs.connected) {
-        // Use the real gyro angle
-        rawGyroRotation = gyroInputs.odometryYawPositions[i];
-      } else {
-        // Use the angle delta from the kinematics and module deltas
-        Twist2d twist = kinematics.toTwist2d(moduleDeltas);
-        rawGyroRotation = rawGyroRotation.plus(new Rotation2d(twist.dtheta));
-      }
+    HybridOdometryThread.getInstance().recordHealth("Odometry/Health", sampleCount);
+    Logger.recordOutput(
+        "Odometry/DroppedSamples", HybridOdometryThread.getInstance().getDroppedSamples());
+    Logger.recordOutput(
+        "Odometry/StaleSamples", HybridOdometryThread.getInstance().getStaleSamples());
+    Logger.recordOutput(
+        "Odometry/SnapshotContention", HybridOdometryThread.getInstance().getContentionCount());
+    HybridOdometryThread.getInstance().getIntervalHistogram().recordOutput("Odometry/Interval");
+    HybridOdometryThread.getInstance().getLatencyHistogram().recordOutput("Odometry/Latency");
+    if (DriveConstants.adaptiveOdometryFrequency) {
+      odometryRateController.periodic();
+    }
+  }
 
-      poseEstimator.updateWithTime(sampleTimestamps[i], rawGyroRotation, modulePositions);
+  /** Integrates the simulated module positions, which have no slip or noise, into the sim pose. */
+  private void updateSimulatedPose() {
+    for (int i = 0; i < 4; i++) {
+      double position = modules[i].getPositionMeters();
+      simPositionDeltas[i] = position - simLastPositions[i];
+      simLastPositions[i] = position;
+      moduleAngles[i] = modules[i].getAngle().getRadians();
     }
+    kinematics.toTwist2d(simPositionDeltas, moduleAngles, simTwist);
+    simPose = simPose.exp(new Twist2d(simTwist[0], simTwist[1], simTwist[2]));
+    Logger.recordOutput("Odometry/SimulatedRobot", simPose);
   }
 
   /** Returns the module states (turn angles and drive velocities) for all of the modules. */
@@ -139,15 +351,6 @@ public class Drive extends SubsystemBase {
     return states;
   }
 
-  /** Returns the module positions (turn angles and drive positions) for all of the modules. */
-  private SwerveModulePosition[] getModulePositions() {
-    SwerveModulePosition[] states = new SwerveModulePosition[4];
-    for (int i = 0; i < 4; i++) {
-      states[i] = modules[i].getPosition();
-    }
-    return states;
-  }
-
   /** Returns an array of module translations. */
   public static Translation2d[] getModuleTranslations() {
     return new Translation2d[] {
@@ -158,46 +361,253 @@ public class Drive extends SubsystemBase {
     };
   }
 
+  /** Drives with field-relative speeds from the supplier. */
   public Command runVoltageTeleopFieldRelative(Supplier<ChassisSpeeds> speeds) {
-    return this.run(
+    return teleopCommand(
         () -> {
-          var allianceSpeeds =
-              ChassisSpeeds.fromFieldRelativeSpeeds(speeds.get(), gyroInputs.yawPosition);
-          // Calculate module setpoints
-          ChassisSpeeds discreteSpeeds = ChassisSpeeds.discretize(allianceSpeeds, 0.02);
-          SwerveModuleState[] setpointStates = kinematics.toSwerveModuleStates(discreteSpeeds);
-          SwerveDriveKinematics.desaturateWheelSpeeds(
-              setpointStates, DriveConstants.maxLinearVelocity);
-
-          Logger.recordOutput("Drive/Target Speeds", discreteSpeeds);
-          Logger.recordOutput("Drive/Speed Error", discreteSpeeds.minus(getVelocity()));
-          Logger.recordOutput(
-              "Drive/Target Chassis Speeds Field Relative",
-              ChassisSpeeds.fromRobotRelativeSpeeds(discreteSpeeds, getRotation()));
-
-          // Send setpoints to modules
-          SwerveModuleState[] optimizedSetpointStates =
-              Streams.zip(
-                      Arrays.stream(modules),
-                      Arrays.stream(setpointStates),
-                      (m, s) -> m.runSetpoint(s))
-                  .toArray(SwerveModuleState[]::new);
-
-          // Log setpoint states
-          Logger.recordOutput("SwerveStates/Setpoints", setpointStates);
-          Logger.recordOutput("SwerveStates/SetpointsOptimized", optimizedSetpointStates);
+          ChassisSpeeds fieldSpeeds = speeds.get();
+          runTeleopFieldRelative(
+              fieldSpeeds.vxMetersPerSecond,
+              fieldSpeeds.vyMetersPerSecond,
+              fieldSpeeds.omegaRadiansPerSecond);
         });
   }
 
+  /**
+   * Drives with field-relative speeds from the suppliers. Unlike the ChassisSpeeds version, nothing
+   * is allocated between the suppliers and the modules.
+   */
+  public Command runVoltageTeleopFieldRelative(
+      DoubleSupplier vxMetersPerSec, DoubleSupplier vyMetersPerSec, DoubleSupplier omegaRadPerSec) {
+    return teleopCommand(
+        () ->
+            runTeleopFieldRelative(
+                vxMetersPerSec.getAsDouble(),
+                vyMetersPerSec.getAsDouble(),
+                omegaRadPerSec.getAsDouble()));
+  }
+
+  private Command teleopCommand(Runnable drive) {
+    return this.run(drive)
+        // Ramp from the measured state rather than the last command's setpoint
+        .beforeStarting(
+            () -> {
+              controlLock.lock();
+              try {
+                setpointGenerator.reset(
+                    chassisVelocity[0], chassisVelocity[1], chassisVelocity[2], moduleAngles);
+              } finally {
+                controlLock.unlock();
+              }
+            })
+        .finallyDo(interrupted -> clearControlTarget());
+  }
+
+  /**
+   * Sends one cycle of field-relative teleop speeds to the modules, or to the control thread when
+   * it is running. The bytes allocated doing so are measured and logged, and should stay at zero.
+   */
+  void runTeleopFieldRelative(double vx, double vy, double omega) {
+    long startAllocatedBytes = AllocationCounter.getAllocatedBytes();
+    if (controlLoop != null) {
+      // The control thread turns the target into module setpoints
+      setControlTarget(vx, vy, omega, false);
+    } else {
+      // Field-relative to robot-relative, the same as ChassisSpeeds.fromFieldRelativeSpeeds
+      double yaw = gyroInputs.yawPosition.getRadians();
+      double cos = Math.cos(yaw);
+      double sin = Math.sin(yaw);
+      SwerveKinematics.discretize(
+          vx * cos + vy * sin, -vx * sin + vy * cos, omega, 0.02, teleopSpeeds);
+      setpointGenerator.generate(teleopSpeeds[0], teleopSpeeds[1], teleopSpeeds[2], 0.02);
+      for (int i = 0; i < 4; i++) {
+        modules[i].runSetpoint(
+            setpointGenerator.getModuleSpeeds()[i], setpointGenerator.getModuleAngles()[i], 0.02);
+      }
+    }
+    long allocatedBytes = AllocationCounter.getAllocatedBytes() - startAllocatedBytes;
+
+    Logger.recordOutput("Drive/TeleopAllocatedBytes", allocatedBytes);
+    if (!DriveConstants.teleopHotPath) {
+      recordTeleopOutput(vx, vy, omega);
+    }
+  }
+
+  /** Logs the teleop targets and setpoints, reusing the logged objects. */
+  private void recordTeleopOutput(double vx, double vy, double omega) {
+    if (controlLoop != null) {
+      setSpeeds(loggedControlTarget, vx, vy, omega);
+      Logger.recordOutput("Drive/Control Target", loggedControlTarget);
+      return;
+    }
+
+    setSpeeds(loggedTargetSpeeds, teleopSpeeds[0], teleopSpeeds[1], teleopSpeeds[2]);
+    setSpeeds(
+        loggedSetpointSpeeds,
+        setpointGenerator.getVx(),
+        setpointGenerator.getVy(),
+        setpointGenerator.getOmega());
+    setSpeeds(
+        loggedSpeedError,
+        teleopSpeeds[0] - chassisVelocity[0],
+        teleopSpeeds[1] - chassisVelocity[1],
+        teleopSpeeds[2] - chassisVelocity[2]);
+    double cos = gyroInputs.yawPosition.getCos();
+    double sin = gyroInputs.yawPosition.getSin();
+    setSpeeds(
+        loggedFieldTargetSpeeds,
+        teleopSpeeds[0] * cos - teleopSpeeds[1] * sin,
+        teleopSpeeds[0] * sin + teleopSpeeds[1] * cos,
+        teleopSpeeds[2]);
+    Logger.recordOutput("Drive/Target Speeds", loggedTargetSpeeds);
+    Logger.recordOutput("Drive/Setpoint Speeds", loggedSetpointSpeeds);
+    Logger.recordOutput("Drive/Speed Error", loggedSpeedError);
+    Logger.recordOutput("Drive/Target Chassis Speeds Field Relative", loggedFieldTargetSpeeds);
+
+    for (int i = 0; i < 4; i++) {
+      loggedSetpointStates[i].set(
+          setpointGenerator.getModuleSpeeds()[i], setpointGenerator.getModuleAngles()[i]);
+      loggedOptimizedStates[i].set(
+          modules[i].getVelocitySetpoint(), modules[i].getAngleSetpointRad());
+    }
+    Logger.recordOutput("SwerveStates/Setpoints", loggedSetpointStates);
+    Logger.recordOutput("SwerveStates/SetpointsOptimized", loggedOptimizedStates);
+  }
+
+  private static void setSpeeds(ChassisSpeeds speeds, double vx, double vy, double omega) {
+    speeds.vxMetersPerSecond = vx;
+    speeds.vyMetersPerSecond = vy;
+    speeds.omegaRadiansPerSecond = omega;
+  }
+
+  /**
+   * Sets the field-relative speeds for the control thread to follow. Direct targets are sent
+   * straight to the modules instead of through the setpoint generator.
+   */
+  private void setControlTarget(double vx, double vy, double omega, boolean direct) {
+    controlLock.lock();
+    try {
+      controlTargetVx = vx;
+      controlTargetVy = vy;
+      controlTargetOmega = omega;
+      controlTargetDirect = direct;
+      controlTargetActive = true;
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /** Stops the control thread from writing setpoints, e.g. when another command takes over. */
+  private void clearControlTarget() {
+    controlLock.lock();
+    try {
+      controlTargetActive = false;
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /**
+   * Control step run on the control thread. Converts the target to robot-relative speeds with the
+   * gyro yaw projected to the current time, then sends the next setpoint to every module.
+   */
+  private void runControlLoop() {
+    controlLock.lock();
+    try {
+      if (!controlTargetActive || DriverStation.isDisabled()) {
+        return;
+      }
+      double periodSecs = controlLoop.getPeriodSecs();
+      double yaw =
+          controlYaw
+              + controlYawRate
+                  * MathUtil.clamp(
+                      Logger.getRealTimestamp() / 1e6 - controlYawTimestamp, 0.0, 0.04);
+
+      // Field-relative to robot-relative, the same as ChassisSpeeds.fromFieldRelativeSpeeds
+      double cos = Math.cos(yaw);
+      double sin = Math.sin(yaw);
+      SwerveKinematics.discretize(
+          controlTargetVx * cos + controlTargetVy * sin,
+          -controlTargetVx * sin + controlTargetVy * cos,
+          controlTargetOmega,
+          periodSecs,
+          controlSpeeds);
+      if (controlTargetDirect) {
+        kinematics.toModuleStates(
+            controlSpeeds[0],
+            controlSpeeds[1],
+            controlSpeeds[2],
+            controlModuleSpeeds,
+            controlModuleAngles);
+        SwerveKinematics.desaturateWheelSpeeds(
+            controlModuleSpeeds, DriveConstants.maxLinearVelocity);
+        for (int i = 0; i < 4; i++) {
+          modules[i].runSetpoint(controlModuleSpeeds[i], controlModuleAngles[i], periodSecs);
+        }
+        return;
+      }
+      setpointGenerator.generate(controlSpeeds[0], controlSpeeds[1], controlSpeeds[2], periodSecs);
+      for (int i = 0; i < 4; i++) {
+        modules[i].runSetpoint(
+            setpointGenerator.getModuleSpeeds()[i],
+            setpointGenerator.getModuleAngles()[i],
+            periodSecs);
+      }
+    } finally {
+      controlLock.unlock();
+    }
+  }
+
+  /**
+   * Runs the drive at robot-relative speeds, e.g. from a path follower. Speeds are sent straight to
+   * the modules, since the follower already keeps to the path's constraints. When the control
+   * thread is running it follows the speeds like a teleop target, so it corrects for the robot
+   * rotating between cycles.
+   */
+  public void runVelocity(ChassisSpeeds speeds) {
+    if (controlLoop != null) {
+      // The control thread takes field-relative targets, rotated by the same yaw it projects from
+      double yaw = gyroInputs.yawPosition.getRadians();
+      double cos = Math.cos(yaw);
+      double sin = Math.sin(yaw);
+      setControlTarget(
+          speeds.vxMetersPerSecond * cos - speeds.vyMetersPerSecond * sin,
+          speeds.vxMetersPerSecond * sin + speeds.vyMetersPerSecond * cos,
+          speeds.omegaRadiansPerSecond,
+          true);
+      Logger.recordOutput("Drive/Path Speeds", speeds);
+      return;
+    }
+
+    SwerveKinematics.discretize(
+        speeds.vxMetersPerSecond,
+        speeds.vyMetersPerSecond,
+        speeds.omegaRadiansPerSecond,
+        0.02,
+        pathSpeeds);
+    kinematics.toModuleStates(
+        pathSpeeds[0], pathSpeeds[1], pathSpeeds[2], pathModuleSpeeds, pathModuleAngles);
+    SwerveKinematics.desaturateWheelSpeeds(pathModuleSpeeds, DriveConstants.maxLinearVelocity);
+    for (int i = 0; i < 4; i++) {
+      modules[i].runSetpoint(pathModuleSpeeds[i], pathModuleAngles[i], 0.02);
+    }
+    Logger.recordOutput("Drive/Path Speeds", speeds);
+  }
+
+  /** Returns the robot-relative velocity measured this cycle. */
+  public ChassisSpeeds getRobotRelativeVelocity() {
+    return new ChassisSpeeds(chassisVelocity[0], chassisVelocity[1], chassisVelocity[2]);
+  }
+
+  /** Returns the field-relative velocity measured this cycle, rotated by the gyro yaw. */
   @AutoLogOutput(key = "Odometry/Velocity")
   public ChassisSpeeds getVelocity() {
-    var speeds =
-        ChassisSpeeds.fromRobotRelativeSpeeds(
-            kinematics.toChassisSpeeds(
-                Arrays.stream(modules).map((m) -> m.getState()).toArray(SwerveModuleState[]::new)),
-            getRotation());
+    Rotation2d rotation = getRotation();
     return new ChassisSpeeds(
-        speeds.vxMetersPerSecond, speeds.vyMetersPerSecond, speeds.omegaRadiansPerSecond);
+        chassisVelocity[0] * rotation.getCos() - chassisVelocity[1] * rotation.getSin(),
+        chassisVelocity[0] * rotation.getSin() + chassisVelocity[1] * rotation.getCos(),
+        chassisVelocity[2]);
   }
 
   public Rotation2d getRotation() {
@@ -216,16 +626,94 @@ public class Drive extends SubsystemBase {
     return poseEstimator.getEstimatedPosition();
   }
 
+  /**
+   * Returns the drive state published at the end of the last cycle. Safe to call from any thread,
+   * and every value in the returned snapshot comes from the same cycle.
+   */
+  public RobotState getRobotState() {
+    return robotState.get();
+  }
+
+  /** Sets the vision measurements to apply after odometry each cycle. */
+  public void setVision(Vision vision) {
+    this.vision = vision;
+  }
+
+  /**
+   * Returns the simulated robot's true pose, integrated from the simulated module positions without
+   * vision. Only updated in sim.
+   */
+  public Pose2d getSimulatedPose() {
+    return simPose;
+  }
+
+  /**
+   * Returns the estimated pose at a timestamp, interpolated between recorded poses or projected
+   * forward with the measured velocity past the newest one. Safe to call from any thread.
+   *
+   * @param timestamp FPGA timestamp in seconds.
+   */
+  public Optional<Pose2d> getPoseAt(double timestamp) {
+    double[] pose = new double[3];
+    if (!poseHistory.getPoseAt(timestamp, pose)) {
+      return Optional.empty();
+    }
+    return Optional.of(new Pose2d(pose[0], pose[1], new Rotation2d(pose[2])));
+  }
+
+  /**
+   * Writes the estimated pose at a timestamp into an array of {x, y, theta} without allocating.
+   * Safe to call from any thread.
+   *
+   * @return False if no poses have been recorded yet.
+   */
+  public boolean getPoseAt(double timestamp, double[] pose) {
+    return poseHistory.getPoseAt(timestamp, pose);
+  }
+
+  /**
+   * Returns the pose projected to a time after the caller's cycle started, e.g. when the actuators
+   * will respond to a command sent this cycle. Safe to call from any thread.
+   *
+   * @param cycleTimestamp FPGA timestamp in seconds that the caller's cycle started at. On the main
+   *     loop this is {@code Logger.getTimestamp() / 1e6}, which is only valid on that thread.
+   * @param lookaheadSecs Time after the cycle start to project to.
+   */
+  public Optional<Pose2d> getPredictedPose(double cycleTimestamp, double lookaheadSecs) {
+    return getPoseAt(cycleTimestamp + lookaheadSecs);
+  }
+
   public void setPose(Pose2d pose) {
-    poseEstimator.resetPosition(rawGyroRotation, getModulePositions(), pose);
+    odometry.resetPosition(pose);
+    poseHistory.clear();
+    // There's no field to place the sim robot on, so a reset moves it there
+    simPose = pose;
   }
 
+  /** Adds a vision measurement with the baseline standard deviations, if it passes the gate. */
   public void addVisionMeasurement(Pose2d visionPose, double timestamp) {
-    poseEstimator.addVisionMeasurement(visionPose, timestamp);
+    visionGate.addMeasurement(
+        visionPose.getX(),
+        visionPose.getY(),
+        0.0,
+        visionPose.getRotation().getRadians(),
+        timestamp,
+        VisionConstants.linearStdDev,
+        VisionConstants.linearStdDev,
+        VisionConstants.angularStdDev);
   }
 
+  /** Adds a vision measurement with standard deviations, if it passes the gate. */
   public void addVisionMeasurement(
       Pose2d visionPose, double timestamp, Matrix<N3, N1> visionMeasurementStdDevs) {
-    poseEstimator.addVisionMeasurement(visionPose, timestamp, visionMeasurementStdDevs);
+    visionGate.addMeasurement(
+        visionPose.getX(),
+        visionPose.getY(),
+        0.0,
+        visionPose.getRotation().getRadians(),
+        timestamp,
+        visionMeasurementStdDevs.get(0, 0),
+        visionMeasurementStdDevs.get(1, 0),
+        visionMeasurementStdDevs.get(2, 0));
   }
 }
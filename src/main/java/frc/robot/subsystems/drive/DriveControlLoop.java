@@ -0,0 +1,96 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.Threads;
+import frc.robot.Constants.DriveConstants;
+import frc.util.TimingHistogram;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Runs a drive control step on a Notifier thread faster than the main loop.
+ *
+ * <p>The step is responsible for its own synchronization with the main loop. The time between
+ * steps and the time each step takes are recorded without locking or allocating, and logged from
+ * the main loop with {@link #recordOutput(String)}.
+ */
+public class DriveControlLoop {
+  public static final double minFrequency = 100.0;
+  public static final double maxFrequency = 250.0;
+
+  private final Notifier notifier;
+  private final Runnable step;
+  private final double periodSecs;
+  private final TimingHistogram intervalHistogram = new TimingHistogram(0.0005, 24);
+  private final TimingHistogram durationHistogram = new TimingHistogram(0.0001, 30);
+  private double lastStartTimestamp = 0.0;
+  private boolean priorityConfigured = false;
+
+  /**
+   * Creates a new control loop, which does not run until started.
+   *
+   * @param name Name of the Notifier thread.
+   * @param step Control step to run each period.
+   * @param frequency Loop frequency in Hz, clamped to {@link #minFrequency} and {@link
+   *     #maxFrequency}.
+   */
+  public DriveControlLoop(String name, Runnable step, double frequency) {
+    this.step = step;
+    periodSecs = 1.0 / MathUtil.clamp(frequency, minFrequency, maxFrequency);
+    notifier = new Notifier(this::run);
+    notifier.setName(name);
+  }
+
+  /**
+   * Starts the loop. Only this loop's callback thread is given the configured priority, on its
+   * first run. The HAL thread that wakes every Notifier in the process is left at its default, so
+   * wake-up jitter from other load on the RIO still shows up in the interval histogram.
+   */
+  public void start() {
+    notifier.startPeriodic(periodSecs);
+  }
+
+  public void stop() {
+    notifier.stop();
+  }
+
+  /** Returns the time between steps in seconds. */
+  public double getPeriodSecs() {
+    return periodSecs;
+  }
+
+  /** Logs the step interval and duration statistics. Main loop only. */
+  public void recordOutput(String key) {
+    intervalHistogram.recordOutput(key + "/Interval");
+    durationHistogram.recordOutput(key + "/Duration");
+  }
+
+  private void run() {
+    if (!priorityConfigured) {
+      Threads.setCurrentThreadPriority(
+          DriveConstants.fastControlThreadRealTime, DriveConstants.fastControlThreadPriority);
+      priorityConfigured = true;
+    }
+
+    double startTimestamp = Logger.getRealTimestamp() / 1e6;
+    if (lastStartTimestamp > 0.0) {
+      intervalHistogram.record(startTimestamp - lastStartTimestamp);
+    }
+    lastStartTimestamp = startTimestamp;
+    step.run();
+    durationHistogram.record(Logger.getRealTimestamp() / 1e6 - startTimestamp);
+  }
+}
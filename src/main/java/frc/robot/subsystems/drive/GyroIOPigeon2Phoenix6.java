@@ -27,9 +27,11 @@ import frc.robot.Constants.RobotMap;
 public class GyroIOPigeon2Phoenix6 implements GyroIO {
   private final Pigeon2 pigeon = new Pigeon2(RobotMap.Drive.gyro);
   private final StatusSignal<Double> yaw = pigeon.getYaw();
-  // private final Queue<Double> yawPositionQueue;
-  // private final Queue<Double> yawTimestampQueue;
+  private final OdometrySampleBuffer yawPositionQueue;
+  private final OdometrySampleBuffer yawTimestampQueue;
   private final StatusSignal<Double> yawVelocity = pigeon.getAngularVelocityZWorld();
+  private final double[] yawTimestampSamples = new double[OdometrySampleBuffer.defaultCapacity];
+  private final double[] yawPositionSamples = new double[OdometrySampleBuffer.defaultCapacity];
 
   public GyroIOPigeon2Phoenix6() {
     pigeon.getConfigurator().apply(new Pigeon2Configuration());
@@ -38,18 +40,10 @@ public class GyroIOPigeon2Phoenix6 implements GyroIO {
     yawVelocity.setUpdateFrequency(100.0);
     pigeon.optimizeBusUtilization();
 
-    // yawTimestampQueue = HybridOdometryThread.getInstance().makeTimestampQueue();
-    // yawPositionQueue =
-    //     HybridOdometryThread.getInstance()
-    //         .registerSignal(
-    //             () -> {
-    //               boolean valid = yaw.refresh().getStatus().isOK();
-    //               if (valid) {
-    //                 return OptionalDouble.of(yaw.getValueAsDouble());
-    //               } else {
-    //                 return OptionalDouble.empty();
-    //               }
-    //             });
+    // Sampled by the same thread as the modules, so every module sample has a matching yaw. The
+    // odometry thread refreshes its own copy so it never races the main loop's refresh.
+    yawTimestampQueue = HybridOdometryThread.getInstance().makeTimestampQueue();
+    yawPositionQueue = HybridOdometryThread.getInstance().registerSignal(pigeon, yaw.clone());
   }
 
   @Override
@@ -58,14 +52,14 @@ public class GyroIOPigeon2Phoenix6 implements GyroIO {
     inputs.yawPosition = Rotation2d.fromDegrees(yaw.getValueAsDouble());
     inputs.yawVelocityRadPerSec = Units.degreesToRadians(yawVelocity.getValueAsDouble());
 
-    // inputs.odometryYawTimestamps =
-    //     yawTimestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    // inputs.odometryYawPositions =
-    //     yawPositionQueue.stream()
-    //         .map((Double value) -> Rotation2d.fromDegrees(value))
-    //         .toArray(Rotation2d[]::new);
-    // yawTimestampQueue.clear();
-    // yawPositionQueue.clear();
+    int sampleCount = yawTimestampQueue.drainTo(yawTimestampSamples);
+    yawPositionQueue.drainTo(yawPositionSamples);
+    inputs.odometryYawTimestamps = new double[sampleCount];
+    inputs.odometryYawPositions = new Rotation2d[sampleCount];
+    for (int i = 0; i < sampleCount; i++) {
+      inputs.odometryYawTimestamps[i] = yawTimestampSamples[i];
+      inputs.odometryYawPositions[i] = Rotation2d.fromDegrees(yawPositionSamples[i]);
+    }
   }
 
   @Override
@@ -1,141 +1,410 @@
-// package frc.robot.subsystems.drive;
-
-// import com.ctre.phoenix6.BaseStatusSignal;
-// import com.ctre.phoenix6.StatusSignal;
-// import com.ctre.phoenix6.hardware.ParentDevice;
-// import java.util.ArrayList;
-// import java.util.List;
-// import java.util.OptionalDouble;
-// import java.util.Queue;
-// import java.util.concurrent.ArrayBlockingQueue;
-// import java.util.concurrent.locks.Lock;
-// import java.util.concurrent.locks.ReentrantLock;
-// import java.util.function.Supplier;
-// import org.littletonrobotics.junction.Logger;
-
-// public class HybridOdometryThread extends Thread {
-
-//   private final Lock signalsLock = new ReentrantLock();
-//   private List<BaseStatusSignal> phoenixSignals = new ArrayList<>();
-//   private List<Supplier<OptionalDouble>> polledSignals = new ArrayList<>();
-//   private List<Queue<Double>> queues = new ArrayList<>();
-//   private List<Queue<Double>> timestampQueues = new ArrayList<>();
-
-//   // Ensures samples added to correct queue
-//   private List<Integer> signalTypes = new ArrayList<>(); // 0 for Phoenix 1 for polled
-
-//   private static final int PHOENIX_SIGNAL = 0;
-//   private static final int POLLED_SIGNAL = 1;
-
-//   private static HybridOdometryThread instance = null;
-
-//   public static HybridOdometryThread getInstance() {
-//     if (instance == null) {
-//       instance = new HybridOdometryThread();
-//     }
-//     return instance;
-//   }
-
-//   private HybridOdometryThread() {
-//     setName("HybridOdometryThread");
-//     setDaemon(true);
-//   }
-
-//   @Override
-//   public void start() {
-//     if (timestampQueues.size() > 0) {
-//       super.start();
-//     }
-//   }
-
-//   public Queue<Double> registerSignal(ParentDevice device, StatusSignal<Double> signal) {
-//     Queue<Double> queue = new ArrayBlockingQueue<>(20);
-//     signalsLock.lock();
-//     Drive.odometryLock.lock();
-//     try {
-//       phoenixSignals.add(signal);
-//       queues.add(queue);
-//       signalTypes.add(PHOENIX_SIGNAL);
-//     } finally {
-//       signalsLock.unlock();
-//       Drive.odometryLock.unlock();
-//     }
-//     return queue;
-//   }
-
-//   public Queue<Double> registerSignal(Supplier<OptionalDouble> signal) {
-//     Queue<Double> queue = new ArrayBlockingQueue<>(20);
-//     Drive.odometryLock.lock();
-//     try {
-//       polledSignals.add(signal);
-//       queues.add(queue);
-//       signalTypes.add(POLLED_SIGNAL);
-//     } finally {
-//       Drive.odometryLock.unlock();
-//     }
-//     return queue;
-//   }
-
-//   public Queue<Double> makeTimestampQueue() {
-//     Queue<Double> queue = new ArrayBlockingQueue<>(20);
-//     Drive.odometryLock.lock();
-//     try {
-//       timestampQueues.add(queue);
-//     } finally {
-//       Drive.odometryLock.unlock();
-//     }
-//     return queue;
-//   }
-
-//   @Override
-//   public void run() {
-//     while (true) {
-//       signalsLock.lock();
-
-//       Drive.odometryLock.lock();
-//       try {
-//         double timestamp = Logger.getRealTimestamp() / 1e6;
-//         double totalLatency = 0.0;
-//         for (BaseStatusSignal signal : phoenixSignals) {
-//           totalLatency += signal.getTimestamp().getLatency();
-//         }
-//         if (!phoenixSignals.isEmpty()) {
-//           timestamp -= totalLatency / phoenixSignals.size();
-//         }
-
-//         // If 1 thing breaks everything breaks, probably a bad idea idrc
-//         boolean allValid = true;
-//         int phoenixIndex = 0;
-//         int polledIndex = 0;
-
-//         for (int i = 0; i < signalTypes.size(); i++) {
-//           double value;
-//           if (signalTypes.get(i) == PHOENIX_SIGNAL) {
-//             value = phoenixSignals.get(phoenixIndex++).getValueAsDouble();
-//           } else {
-//             OptionalDouble optionalValue = polledSignals.get(polledIndex++).get();
-//             if (optionalValue.isPresent()) {
-//               value = optionalValue.getAsDouble();
-//             } else {
-//               allValid = false;
-//               break;
-//             }
-//           }
-
-//           if (allValid) {
-//             queues.get(i).offer(value);
-//           }
-//         }
-
-//         // All thingies sampled together
-//         if (allValid) {
-//           for (Queue<Double> timestampQueue : timestampQueues) {
-//             timestampQueue.offer(timestamp);
-//           }
-//         }
-//       } finally {
-//         Drive.odometryLock.unlock();
-//       }
-//     }
-//   }
-// }
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import com.ctre.phoenix6.BaseStatusSignal;
+import com.ctre.phoenix6.StatusSignal;
+import com.ctre.phoenix6.hardware.ParentDevice;
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.wpilibj.Threads;
+import frc.robot.Constants.DriveConstants;
+import frc.util.TimingHistogram;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalDouble;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleConsumer;
+import java.util.function.Supplier;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Provides an interface for asynchronously reading high-frequency measurements to a set of buffers.
+ *
+ * <p>This version is intended for modules that mix Phoenix 6 devices with devices like the SparkMax
+ * that require polling. Samples are scheduled against a fixed period rather than sleeping a fixed
+ * time after each read, so CAN read time does not lower the sample rate.
+ *
+ * <p>Each signal is stamped with its own capture time: Phoenix signals use the CAN timestamp of
+ * their last frame and polled signals use the time they were read. Every signal is then linearly
+ * interpolated onto a common time (the oldest capture time of the sample), so all buffers share one
+ * timestamp without the skew between devices showing up as pose error.
+ */
+public class HybridOdometryThread extends Thread {
+  private final Lock signalsLock =
+      new ReentrantLock(); // Prevents conflicts when registering signals
+  private BaseStatusSignal[] phoenixSignals = new BaseStatusSignal[0];
+  private final List<Supplier<OptionalDouble>> polledSignals = new ArrayList<>();
+  private final List<OdometrySampleBuffer> phoenixQueues = new ArrayList<>();
+  private final List<OdometrySampleBuffer> polledQueues = new ArrayList<>();
+  private final List<OdometrySampleBuffer> timestampQueues = new ArrayList<>();
+  private final List<OdometrySampleBuffer> signalQueues = new ArrayList<>(); // Registration order
+  private final OdometrySequence sequence = new OdometrySequence();
+  private volatile long droppedSamples = 0;
+  private volatile long invalidSamples = 0;
+  private volatile long staleSamples = 0;
+  private final List<DoubleConsumer> frequencyListeners = new ArrayList<>();
+  private volatile double targetFrequency = DriveConstants.odometeryFrequency;
+  private volatile double frequency = DriveConstants.odometeryFrequency;
+  private final TimingHistogram intervalHistogram = new TimingHistogram(0.0005, 24);
+  private final TimingHistogram latencyHistogram = new TimingHistogram(0.0005, 24);
+  private double lastWakeTimestamp = 0.0;
+
+  // Main loop only
+  private OdometryHealth[] signalHealth = new OdometryHealth[0];
+  private String[] signalNames = new String[0];
+  private final OdometryHealth totalHealth = new OdometryHealth();
+
+  // Phoenix signals first, then polled signals, in registration order
+  private double[] values = new double[0];
+  private double[] captureTimes = new double[0];
+  private double[] lastValues = new double[0];
+  private double[] lastCaptureTimes = new double[0];
+  private double[] lastFrameTimes = new double[0]; // Phoenix signals only
+  private boolean hasLastSample = false;
+  private double lastGridTime = 0.0;
+
+  private static HybridOdometryThread instance = null;
+
+  public static HybridOdometryThread getInstance() {
+    if (instance == null) {
+      instance = new HybridOdometryThread();
+    }
+    return instance;
+  }
+
+  private HybridOdometryThread() {
+    setName("HybridOdometryThread");
+    setDaemon(true);
+  }
+
+  @Override
+  public void start() {
+    if (timestampQueues.size() > 0) {
+      super.start();
+    }
+  }
+
+  public OdometrySampleBuffer registerSignal(ParentDevice device, StatusSignal<Double> signal) {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
+    try {
+      queue =
+          new OdometrySampleBuffer(
+              sequence,
+              device.getClass().getSimpleName()
+                  + " "
+                  + device.getDeviceID()
+                  + "/"
+                  + signal.getName());
+      BaseStatusSignal[] newSignals = new BaseStatusSignal[phoenixSignals.length + 1];
+      System.arraycopy(phoenixSignals, 0, newSignals, 0, phoenixSignals.length);
+      newSignals[phoenixSignals.length] = signal;
+      phoenixSignals = newSignals;
+      phoenixQueues.add(queue);
+      signalQueues.add(queue);
+      resizeSampleArrays();
+    } finally {
+      signalsLock.unlock();
+    }
+    return queue;
+  }
+
+  public OdometrySampleBuffer registerSignal(String name, Supplier<OptionalDouble> signal) {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
+    try {
+      queue = new OdometrySampleBuffer(sequence, name);
+      polledSignals.add(signal);
+      polledQueues.add(queue);
+      signalQueues.add(queue);
+      resizeSampleArrays();
+    } finally {
+      signalsLock.unlock();
+    }
+    return queue;
+  }
+
+  public OdometrySampleBuffer makeTimestampQueue() {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
+    try {
+      queue = new OdometrySampleBuffer(sequence, "Timestamp");
+      timestampQueues.add(queue);
+    } finally {
+      signalsLock.unlock();
+    }
+    return queue;
+  }
+
+  /**
+   * Registers a callback run on the odometry thread whenever the sample frequency changes, used to
+   * update status frame periods of polled devices. Phoenix signals are updated automatically.
+   */
+  public void registerFrequencyListener(DoubleConsumer listener) {
+    signalsLock.lock();
+    try {
+      frequencyListeners.add(listener);
+    } finally {
+      signalsLock.unlock();
+    }
+  }
+
+  /** Requests a new sample frequency in Hz, applied by the thread before its next sample. */
+  public void setFrequency(double frequency) {
+    targetFrequency = frequency;
+  }
+
+  /** Returns the sample frequency in Hz that the thread is currently running at. */
+  public double getFrequency() {
+    return frequency;
+  }
+
+  /** Returns the number of samples published since the thread started. */
+  public long getPublishedSamples() {
+    return sequence.getPublishedCount();
+  }
+
+  /** Returns the number of samples skipped because a polled signal could not be read. */
+  public long getInvalidSamples() {
+    return invalidSamples;
+  }
+
+  /** Returns the number of samples skipped because a signal was captured before the last one. */
+  public long getStaleSamples() {
+    return staleSamples;
+  }
+
+  /** Captures the samples published so far for the main loop to drain this cycle. */
+  public void latchSamples() {
+    sequence.latch();
+  }
+
+  /** Returns the number of cycles where the main loop latched while a sample was being written. */
+  public long getContentionCount() {
+    return sequence.getContentionCount();
+  }
+
+  private void resizeSampleArrays() {
+    int signalCount = phoenixSignals.length + polledSignals.size();
+    values = new double[signalCount];
+    captureTimes = new double[signalCount];
+    lastValues = new double[signalCount];
+    lastCaptureTimes = new double[signalCount];
+    lastFrameTimes = new double[phoenixSignals.length];
+    hasLastSample = false;
+  }
+
+  @Override
+  public void run() {
+    Threads.setCurrentThreadPriority(
+        DriveConstants.odometryThreadRealTime, DriveConstants.odometryThreadPriority);
+    long periodNanos = (long) (1e9 / frequency);
+    long nextSampleNanos = System.nanoTime();
+    while (true) {
+      // Apply any requested change in sample frequency between samples
+      double requestedFrequency = targetFrequency;
+      if (requestedFrequency != frequency) {
+        applyFrequency(requestedFrequency);
+        periodNanos = (long) (1e9 / requestedFrequency);
+      }
+
+      // Wait for the next sample period, skipping any periods that were missed entirely
+      nextSampleNanos += periodNanos;
+      long waitNanos = nextSampleNanos - System.nanoTime();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(waitNanos);
+      } else if (-waitNanos > periodNanos) {
+        nextSampleNanos = System.nanoTime();
+      }
+      double wakeTimestamp = Logger.getRealTimestamp() / 1e6;
+      if (lastWakeTimestamp > 0.0) {
+        intervalHistogram.record(wakeTimestamp - lastWakeTimestamp);
+      }
+      lastWakeTimestamp = wakeTimestamp;
+
+      // The main loop never takes this lock, it only drains samples that have been published to
+      // the sequence
+      signalsLock.lock();
+      try {
+        // Update the Phoenix signals. The RIO bus is not CAN FD, so "waitForAll" cannot be used
+        // here (see PhoenixOdometryThread).
+        if (phoenixSignals.length > 0) BaseStatusSignal.refreshAll(phoenixSignals);
+
+        // Phoenix signals are stamped with the time their frame was received
+        int phoenixCount = phoenixSignals.length;
+        double readTimestamp = Logger.getRealTimestamp() / 1e6;
+        for (int i = 0; i < phoenixCount; i++) {
+          BaseStatusSignal signal = phoenixSignals[i];
+          values[i] = signal.getValueAsDouble();
+          captureTimes[i] = readTimestamp - signal.getTimestamp().getLatency();
+          if (!signal.getStatus().isOK()) {
+            phoenixQueues.get(i).markInvalid();
+          }
+          double frameTime = signal.getTimestamp().getTime();
+          if (frameTime == lastFrameTimes[i]) {
+            phoenixQueues.get(i).markStale();
+          }
+          lastFrameTimes[i] = frameTime;
+        }
+
+        // Polled signals are stamped with the time they were read. They report failures as empty
+        // values, skip the whole sample if any fail.
+        boolean isValid = true;
+        for (int i = 0; i < polledSignals.size(); i++) {
+          OptionalDouble value = polledSignals.get(i).get();
+          if (value.isPresent()) {
+            values[phoenixCount + i] = value.getAsDouble();
+            captureTimes[phoenixCount + i] = Logger.getRealTimestamp() / 1e6;
+          } else {
+            polledQueues.get(i).markInvalid();
+            isValid = false;
+          }
+        }
+        if (!isValid) {
+          OdometrySampleBuffer.markDropped(signalQueues);
+          invalidSamples++;
+          continue;
+        }
+        if (values.length == 0) {
+          continue;
+        }
+
+        // Resample onto the oldest capture time, so every signal is interpolated between its
+        // previous and current sample rather than extrapolated
+        double gridTime = captureTimes[0];
+        for (int i = 1; i < captureTimes.length; i++) {
+          gridTime = Math.min(gridTime, captureTimes[i]);
+        }
+        if (gridTime < lastGridTime) {
+          // A signal captured before the last published sample can't be interpolated onto a later
+          // grid time, only extrapolated, so skip the whole sample and keep the last one as the
+          // start of the next interval
+          for (int i = 0; i < phoenixCount; i++) {
+            if (captureTimes[i] < lastGridTime) {
+              phoenixQueues.get(i).markStale();
+            }
+          }
+          for (int i = 0; i < polledQueues.size(); i++) {
+            if (captureTimes[phoenixCount + i] < lastGridTime) {
+              polledQueues.get(i).markStale();
+            }
+          }
+          OdometrySampleBuffer.markDropped(signalQueues);
+          staleSamples++;
+          continue;
+        }
+
+        // Only write whole samples so every buffer stays aligned with the timestamps
+        if (!OdometrySampleBuffer.hasCapacity(phoenixQueues)
+            || !OdometrySampleBuffer.hasCapacity(polledQueues)
+            || !OdometrySampleBuffer.hasCapacity(timestampQueues)) {
+          OdometrySampleBuffer.markDropped(signalQueues);
+          droppedSamples++;
+        } else {
+          sequence.beginWrite();
+          for (int i = 0; i < phoenixCount; i++) {
+            phoenixQueues.get(i).offer(resample(i, gridTime));
+          }
+          for (int i = 0; i < polledQueues.size(); i++) {
+            polledQueues.get(i).offer(resample(phoenixCount + i, gridTime));
+          }
+          for (int i = 0; i < timestampQueues.size(); i++) {
+            timestampQueues.get(i).offer(gridTime);
+          }
+          sequence.endWrite();
+          latencyHistogram.record(Logger.getRealTimestamp() / 1e6 - gridTime);
+        }
+
+        // Save this sample as the start of the next interpolation interval
+        System.arraycopy(values, 0, lastValues, 0, values.length);
+        System.arraycopy(captureTimes, 0, lastCaptureTimes, 0, captureTimes.length);
+        hasLastSample = true;
+        lastGridTime = gridTime;
+      } finally {
+        signalsLock.unlock();
+      }
+    }
+  }
+
+  private void applyFrequency(double newFrequency) {
+    signalsLock.lock();
+    try {
+      if (phoenixSignals.length > 0) {
+        BaseStatusSignal.setUpdateFrequencyForAll(newFrequency, phoenixSignals);
+      }
+      for (int i = 0; i < frequencyListeners.size(); i++) {
+        frequencyListeners.get(i).accept(newFrequency);
+      }
+      frequency = newFrequency;
+    } finally {
+      signalsLock.unlock();
+    }
+  }
+
+  /** Returns the value of a signal at the given time, interpolated from its last two samples. */
+  private double resample(int index, double timestamp) {
+    if (!hasLastSample || captureTimes[index] <= lastCaptureTimes[index]) {
+      return values[index];
+    }
+    return MathUtil.interpolate(
+        lastValues[index],
+        values[index],
+        (timestamp - lastCaptureTimes[index]) / (captureTimes[index] - lastCaptureTimes[index]));
+  }
+
+  /** Returns the histogram of time between sample periods. */
+  public TimingHistogram getIntervalHistogram() {
+    return intervalHistogram;
+  }
+
+  /** Returns the histogram of time from a sample's capture to it being published. */
+  public TimingHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /**
+   * Logs the health of every signal and the total across them. Main loop only.
+   *
+   * @param key Key to log the total under, per-signal entries are logged below it.
+   * @param samplesConsumed Number of samples the main loop integrated this cycle.
+   */
+  public void recordHealth(String key, int samplesConsumed) {
+    if (signalHealth.length != signalQueues.size()) {
+      signalHealth = new OdometryHealth[signalQueues.size()];
+      signalNames = new String[signalQueues.size()];
+      for (int i = 0; i < signalHealth.length; i++) {
+        signalHealth[i] = new OdometryHealth();
+        signalNames[i] = signalQueues.get(i).getName();
+      }
+    }
+
+    totalHealth.clear();
+    for (int i = 0; i < signalHealth.length; i++) {
+      signalHealth[i].set(signalQueues.get(i));
+      totalHealth.add(signalHealth[i]);
+    }
+    totalHealth.samplesConsumed = samplesConsumed;
+
+    Logger.recordOutput(key, totalHealth);
+    Logger.recordOutput(key + "/Signals", signalHealth);
+    Logger.recordOutput(key + "/SignalNames", signalNames);
+  }
+
+  /** Returns the number of samples discarded because the main loop did not drain the buffers. */
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
+}
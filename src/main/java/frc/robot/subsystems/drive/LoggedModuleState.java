@@ -0,0 +1,78 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.util.struct.Struct;
+import edu.wpi.first.util.struct.StructSerializable;
+import java.nio.ByteBuffer;
+
+/**
+ * A module state that is updated in place and logs as a SwerveModuleState. SwerveModuleState keeps
+ * its angle in an immutable Rotation2d, so logging setpoints with it builds a new angle for every
+ * module each cycle.
+ */
+public class LoggedModuleState implements StructSerializable {
+  public static final LoggedModuleStateStruct struct = new LoggedModuleStateStruct();
+
+  public double speedMetersPerSecond = 0.0;
+  public double angleRad = 0.0;
+
+  public void set(double speedMetersPerSecond, double angleRad) {
+    this.speedMetersPerSecond = speedMetersPerSecond;
+    this.angleRad = angleRad;
+  }
+
+  /** Packs with the SwerveModuleState schema, so the log shows the states as swerve states. */
+  public static class LoggedModuleStateStruct implements Struct<LoggedModuleState> {
+    @Override
+    public Class<LoggedModuleState> getTypeClass() {
+      return LoggedModuleState.class;
+    }
+
+    @Override
+    public String getTypeString() {
+      return "struct:SwerveModuleState";
+    }
+
+    @Override
+    public int getSize() {
+      return kSizeDouble + Rotation2d.struct.getSize();
+    }
+
+    @Override
+    public String getSchema() {
+      return "double speed;Rotation2d angle";
+    }
+
+    @Override
+    public Struct<?>[] getNested() {
+      return new Struct<?>[] {Rotation2d.struct};
+    }
+
+    @Override
+    public LoggedModuleState unpack(ByteBuffer bb) {
+      LoggedModuleState state = new LoggedModuleState();
+      state.speedMetersPerSecond = bb.getDouble();
+      state.angleRad = bb.getDouble(); // Rotation2d is a single double of radians
+      return state;
+    }
+
+    @Override
+    public void pack(ByteBuffer bb, LoggedModuleState value) {
+      bb.putDouble(value.speedMetersPerSecond);
+      bb.putDouble(value.angleRad);
+    }
+  }
+}
@@ -14,6 +14,7 @@
 package frc.robot.subsystems.drive;
 
 import edu.wpi.first.hal.simulation.RoboRioDataJNI;
+import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Rotation2d;
 import edu.wpi.first.math.kinematics.SwerveModulePosition;
 import edu.wpi.first.math.kinematics.SwerveModuleState;
@@ -27,13 +28,24 @@ public class Module {
   private final ModuleIO io;
   private final ModuleIOInputsAutoLogged inputs = new ModuleIOInputsAutoLogged();
   private final int index;
+  private final String logKey;
+  private final String voltageAvailableKey;
 
   // private SimpleMotorFeedforward driveFeedforward;
 
-  private Rotation2d angleSetpoint = null; // Setpoint for closed loop control, null for open loop
-  private Double velocitySetpoint = null; // Setpoint for closed loop control, null for open loop
-  private Rotation2d turnRelativeOffset = null; // Relative + Offset = Absolute
-  private SwerveModulePosition[] odometryPositions = new SwerveModulePosition[] {};
+  // Setpoints for closed loop control, NaN for open loop. Primitives so setpoints don't allocate.
+  private double angleSetpointRad = Double.NaN;
+  private double velocitySetpoint = Double.NaN;
+  private double turnRelativeOffsetRad = 0.0; // Relative + Offset = Absolute
+
+  // Exchanged with the drive control thread in swapControlState, under the drive's control lock
+  private double controlTurnPositionRad = 0.0;
+  private double controlVelocityMetersPerSec = 0.0;
+  private double loggedAngleSetpointRad = Double.NaN;
+
+  // Reused across cycles, only grown when a cycle has more samples than before
+  private double[] odometryDrivePositionsMeters = new double[] {};
+  private double[] odometryTurnPositionsRad = new double[] {};
   private static final String[] moduleNames = new String[] {"FL", "FR", "BL", "BR"};
 
   private LoggedTunableNumber kPDrive = new LoggedTunableNumber("Drive/kPDrive");
@@ -48,11 +60,13 @@ public class Module {
   private final Alert driveMotorDisconnected;
   private final Alert turnMotorDisconnected;
 
-  private SwerveModuleState lastSetpoint = new SwerveModuleState();
+  private double lastDriveVelocitySetpoint = 0.0; // Meters per second, for acceleration
 
   public Module(ModuleIO io, int index) {
     this.io = io;
     this.index = index;
+    logKey = String.format("Drive/%s Module", io.getModuleName());
+    voltageAvailableKey = logKey + "/Voltage Available";
 
     driveMotorDisconnected =
         new Alert(moduleNames[index] + " drive motor disconnected!", Alert.AlertType.WARNING);
@@ -113,11 +127,48 @@ public class Module {
 
   /**
    * Update inputs without running the rest of the periodic logic. This is useful since these
-   * updates need to be properly thread-locked.
+   * updates need to drain the same odometry snapshot as the other modules.
    */
   public void processInputs() {
     io.processInputs(inputs);
 
+    driveMotorDisconnected.set(!inputs.driveMotorConnected);
+    turnMotorDisconnected.set(!inputs.turnMotorConnected);
+  }
+
+  public void periodic() {
+    // Logged here rather than with each setpoint, so running setpoints doesn't log
+    if (!Double.isNaN(loggedAngleSetpointRad)) {
+      inputs.targetPositionRad = loggedAngleSetpointRad;
+    }
+    Logger.processInputs(logKey, inputs);
+    Logger.recordOutput(
+        voltageAvailableKey, Math.abs(inputs.driveAppliedVolts - RoboRioDataJNI.getVInVoltage()));
+
+    // Calculate positions for odometry
+    int sampleCount = inputs.odometryTimestamps.length; // All signals are sampled together
+    if (odometryDrivePositionsMeters.length < sampleCount) {
+      odometryDrivePositionsMeters = new double[sampleCount];
+      odometryTurnPositionsRad = new double[sampleCount];
+    }
+    for (int i = 0; i < sampleCount; i++) {
+      odometryDrivePositionsMeters[i] = inputs.odometryDrivePositionsMeters[i];
+      odometryTurnPositionsRad[i] = inputs.odometryTurnPositionsRad[i] + turnRelativeOffsetRad;
+    }
+  }
+
+  /**
+   * Makes the turn position and drive velocity read this cycle the ones setpoints are computed
+   * from, and takes the last angle setpoint for the next cycle's log. Changed gains and the writes
+   * queued while reading inputs are sent here too, so the control thread is the only other caller
+   * that writes to the motors. Call with the drive's control lock held, after the inputs are read,
+   * so the control thread never sees inputs that are being updated.
+   */
+  public void swapControlState() {
+    controlTurnPositionRad = inputs.turnPosition.getRadians();
+    controlVelocityMetersPerSec = inputs.driveVelocityMetersPerSec;
+    loggedAngleSetpointRad = angleSetpointRad;
+
     LoggedTunableNumber.ifChanged(
         hashCode(),
         () ->
@@ -130,45 +181,67 @@ public class Module {
         kADrive);
     LoggedTunableNumber.ifChanged(
         hashCode(), () -> io.setTurnPID(kPTurn.get(), 0, kDTurn.get()), kPTurn, kDTurn);
-
-    driveMotorDisconnected.set(!inputs.driveMotorConnected);
-    turnMotorDisconnected.set(!inputs.turnMotorConnected);
-  }
-
-  public void periodic() {
-    Logger.processInputs(String.format("Drive/%s Module", io.getModuleName()), inputs);
-    Logger.recordOutput(
-        String.format("Drive/%s Module/Voltage Available", io.getModuleName()),
-        Math.abs(inputs.driveAppliedVolts - RoboRioDataJNI.getVInVoltage()));
-
-    // Calculate positions for odometry
-    int sampleCount = inputs.odometryTimestamps.length; // All signals are sampled together
-    odometryPositions = new SwerveModulePosition[sampleCount];
-    for (int i = 0; i < sampleCount; i++) {
-      double positionMeters = inputs.odometryDrivePositionsRad[i] * DriveConstants.wheelRadius;
-      Rotation2d angle =
-          inputs.odometryTurnPositions[i].plus(
-              turnRelativeOffset != null ? turnRelativeOffset : new Rotation2d());
-      odometryPositions[i] = new SwerveModulePosition(positionMeters, angle);
-    }
+    io.sendQueuedWrites();
   }
 
   /** Runs the module with the specified setpoint state. Returns the optimized state. */
   public SwerveModuleState runSetpoint(SwerveModuleState setpoint) {
+    return runSetpoint(setpoint, 0.02);
+  }
 
-    final var optimizedState = SwerveModuleState.optimize(setpoint, getAngle());
-    inputs.targetPosition = optimizedState.angle;
-    io.runTurnPositionSetpoint(optimizedState.angle.getRadians());
-    io.runDriveVelocitySetpoint(
-        optimizedState.speedMetersPerSecond
-            * Math.cos(optimizedState.angle.minus(inputs.turnPosition).getRadians()),
-        (optimizedState.speedMetersPerSecond - lastSetpoint.speedMetersPerSecond) / 0.02);
+  /**
+   * Runs the module with the specified setpoint state, sent every {@code periodSecs}. Returns the
+   * optimized state.
+   */
+  public SwerveModuleState runSetpoint(SwerveModuleState setpoint, double periodSecs) {
+    runSetpoint(setpoint.speedMetersPerSecond, setpoint.angle.getRadians(), periodSecs);
+    return new SwerveModuleState(velocitySetpoint, new Rotation2d(angleSetpointRad));
+  }
 
-    angleSetpoint = optimizedState.angle;
+  /**
+   * Runs the module with the specified speed and angle, sent every {@code periodSecs}, without
+   * allocating. The optimized setpoint is read with {@link #getVelocitySetpoint()} and {@link
+   * #getAngleSetpointRad()}.
+   */
+  public void runSetpoint(double speedMetersPerSec, double angleRad, double periodSecs) {
+    // Optimize, the same as SwerveModuleState.optimize
+    double currentAngleRad = controlTurnPositionRad;
+    if (Math.abs(MathUtil.angleModulus(angleRad - currentAngleRad)) > Math.PI / 2.0) {
+      speedMetersPerSec = -speedMetersPerSec;
+      angleRad = MathUtil.angleModulus(angleRad + Math.PI);
+    }
+    io.runTurnPositionSetpoint(angleRad);
+
+    // Scale the speed by how far the module is from its target angle. The acceleration is clamped
+    // since the optimized speed can change sign when the target angle flips.
+    double driveVelocity = speedMetersPerSec * Math.cos(angleRad - currentAngleRad);
+    double driveAcceleration =
+        MathUtil.clamp(
+            (driveVelocity - lastDriveVelocitySetpoint) / periodSecs,
+            -DriveConstants.maxLinearAccel,
+            DriveConstants.maxLinearAccel);
+    if (driveVelocity == 0.0
+        && driveAcceleration == 0.0
+        && MathUtil.isNear(0.0, controlVelocityMetersPerSec, 0.1)) {
+      // Coast to a stop rather than holding zero velocity
+      io.runDriveVoltage(0.0);
+    } else {
+      io.runDriveVelocitySetpoint(driveVelocity, driveAcceleration);
+    }
+    lastDriveVelocitySetpoint = driveVelocity;
+
+    angleSetpointRad = angleRad;
+    velocitySetpoint = speedMetersPerSec;
+  }
 
-    velocitySetpoint = optimizedState.speedMetersPerSecond;
+  /** Returns the optimized speed of the last setpoint in meters per second. */
+  public double getVelocitySetpoint() {
+    return velocitySetpoint;
+  }
 
-    return optimizedState;
+  /** Returns the optimized angle of the last setpoint in radians. */
+  public double getAngleSetpointRad() {
+    return angleSetpointRad;
   }
 
   /** Disables all outputs to motors. */
@@ -177,8 +250,9 @@ public class Module {
     io.runDriveVoltage(0.0);
 
     // Disable closed loop control for turn and drive
-    angleSetpoint = null;
-    velocitySetpoint = null;
+    angleSetpointRad = Double.NaN;
+    velocitySetpoint = Double.NaN;
+    lastDriveVelocitySetpoint = 0.0;
   }
 
   /** Returns the current turn angle of the module. */
@@ -188,12 +262,12 @@ public class Module {
 
   /** Returns the current drive position of the module in meters. */
   public double getPositionMeters() {
-    return inputs.drivePositionRad * DriveConstants.wheelRadius;
+    return inputs.drivePositionMeters;
   }
 
   /** Returns the current drive velocity of the module in meters per second. */
   public double getVelocityMetersPerSec() {
-    return inputs.driveVelocityRadPerSec * DriveConstants.wheelRadius;
+    return inputs.driveVelocityMetersPerSec;
   }
 
   /** Returns the module position (turn angle and drive position). */
@@ -206,6 +280,22 @@ public class Module {
     return new SwerveModuleState(getVelocityMetersPerSec(), getAngle());
   }
 
+  /**
+   * Returns the drive positions in meters received this cycle. Only the first {@link
+   * #getOdometryTimestamps()}.length entries are valid, and the array is reused next cycle.
+   */
+  public double[] getOdometryDrivePositionsMeters() {
+    return odometryDrivePositionsMeters;
+  }
+
+  /**
+   * Returns the turn angles in radians received this cycle. Only the first {@link
+   * #getOdometryTimestamps()}.length entries are valid, and the array is reused next cycle.
+   */
+  public double[] getOdometryTurnPositionsRad() {
+    return odometryTurnPositionsRad;
+  }
+
   /** Returns the timestamps of the samples received this cycle. */
   public double[] getOdometryTimestamps() {
     return inputs.odometryTimestamps;
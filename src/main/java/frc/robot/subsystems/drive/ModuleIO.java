@@ -23,14 +23,14 @@ public interface ModuleIO {
     public boolean turnMotorConnected = true;
     public boolean hasCurrentControl = false;
 
-    public double drivePositionRad = 0.0;
-    public double driveVelocityRadPerSec = 0.0;
+    public double drivePositionMeters = 0.0;
+    public double driveVelocityMetersPerSec = 0.0;
     public double driveAppliedVolts = 0.0;
     public double[] driveCurrentAmps = new double[] {};
 
     public Rotation2d turnAbsolutePosition = new Rotation2d();
     public Rotation2d turnPosition = new Rotation2d();
-    public Rotation2d targetPosition = new Rotation2d();
+    public double targetPositionRad = 0.0;
     public double turnVelocityRadPerSec = 0.0;
     public double turnAppliedVolts = 0.0;
     public double[] turnCurrentAmps = new double[] {};
@@ -39,8 +39,8 @@ public interface ModuleIO {
     public double absoluteEncoderReadingVolts = 0.0;
 
     public double[] odometryTimestamps = new double[] {};
-    public double[] odometryDrivePositionsRad = new double[] {};
-    public Rotation2d[] odometryTurnPositions = new Rotation2d[] {};
+    public double[] odometryDrivePositionsMeters = new double[] {};
+    public double[] odometryTurnPositionsRad = new double[] {};
   }
 
   /** Updates the set of loggable inputs. */
@@ -52,8 +52,9 @@ public interface ModuleIO {
   /** Run the turn motor at the specified voltage. */
   public abstract void runTurnVoltage(double volts);
 
-  /** Run to drive velocity setpoint with feedforward */
-  public abstract void runDriveVelocitySetpoint(double velocityRadsPerSec, double feedForward);
+  /** Run to drive velocity setpoint in meters per second, with the setpoint's acceleration */
+  public abstract void runDriveVelocitySetpoint(
+      double metersPerSecond, double metersPerSecondSquared);
 
   /** Run to turn position setpoint */
   public abstract void runTurnPositionSetpoint(double angleRads);
@@ -74,5 +75,11 @@ public interface ModuleIO {
   /** Disable output to all motors */
   public abstract void stop();
 
+  /**
+   * Sends writes queued while reading inputs, e.g. encoder reseeds. Called with the drive's control
+   * lock held, so they never overlap setpoints sent by the control thread.
+   */
+  public abstract void sendQueuedWrites();
+
   public abstract String getModuleName();
 }
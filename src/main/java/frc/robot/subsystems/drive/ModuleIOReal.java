@@ -29,14 +29,16 @@ import com.revrobotics.CANSparkBase.IdleMode;
 import com.revrobotics.CANSparkLowLevel.MotorType;
 import com.revrobotics.CANSparkLowLevel.PeriodicFrame;
 import com.revrobotics.CANSparkMax;
+import com.revrobotics.REVLibError;
 import com.revrobotics.RelativeEncoder;
 import com.revrobotics.SparkPIDController;
 import edu.wpi.first.math.MathUtil;
 import edu.wpi.first.math.geometry.Rotation2d;
-import edu.wpi.first.math.util.Units;
 import edu.wpi.first.wpilibj.AnalogEncoder;
+import edu.wpi.first.wpilibj.Timer;
 import frc.robot.Constants.DriveConstants;
 import frc.robot.Constants.RobotMap;
+import java.util.OptionalDouble;
 import org.littletonrobotics.junction.Logger;
 
 /**
@@ -64,21 +66,34 @@ public class ModuleIOReal implements ModuleIO {
   private final AnalogEncoder absoluteEncoder;
   private final SparkPIDController turnPID;
 
-  // private final Queue<Double> timestampQueue;
+  private final OdometrySampleBuffer timestampQueue;
 
   private final StatusSignal<Double> drivePosition;
-  // private final Queue<Double> drivePositionQueue;
+  private final OdometrySampleBuffer drivePositionQueue;
   private final StatusSignal<Double> driveVelocity;
   private final StatusSignal<Double> driveAppliedVolts;
   private final StatusSignal<Double> driveCurrent;
   private int multiplier;
 
-  private int iLoveRev = 0;
-
-  private final VelocityVoltage driveCurrentVelocity =
-      new VelocityVoltage(0.0).withEnableFOC(false);
-
-  // private final Queue<Double> turnPositionQueue;
+  // Reseeds are queued while reading inputs and sent in sendQueuedWrites, NaN when none is queued
+  private double reseedPosition = Double.NaN;
+  private double driftStartTimestamp = Double.NaN;
+  private long reseedCount = 0;
+
+  // Reused for every setpoint. The mechanism is the wheel surface, so velocities are in meters.
+  private final VelocityVoltage driveVelocityRequest =
+      new VelocityVoltage(0.0)
+          .withEnableFOC(false)
+          .withSlot(0)
+          .withUseTimesync(DriveConstants.driveOutputTimesync);
+  private final VoltageOut driveVoltageRequest =
+      new VoltageOut(0.0).withUseTimesync(DriveConstants.driveOutputTimesync);
+  private final NeutralOut driveNeutralRequest = new NeutralOut();
+
+  private final OdometrySampleBuffer turnPositionQueue;
+  private final double[] timestampSamples = new double[OdometrySampleBuffer.defaultCapacity];
+  private final double[] drivePositionSamples = new double[OdometrySampleBuffer.defaultCapacity];
+  private final double[] turnPositionSamples = new double[OdometrySampleBuffer.defaultCapacity];
 
   private Rotation2d absoluteEncoderOffset;
 
@@ -194,11 +209,12 @@ public class ModuleIOReal implements ModuleIO {
     turnSparkMax.burnFlash();
     turnSparkMax.setCANTimeout(0);
 
-    // timestampQueue = HybridOdometryThread.getInstance().makeTimestampQueue();
+    timestampQueue = HybridOdometryThread.getInstance().makeTimestampQueue();
 
     drivePosition = driveTalon.getPosition();
-    // drivePositionQueue =
-    //     HybridOdometryThread.getInstance().registerSignal(driveTalon, driveTalon.getPosition());
+    // The odometry thread refreshes its own copy so it never races the main loop's refresh
+    drivePositionQueue =
+        HybridOdometryThread.getInstance().registerSignal(driveTalon, drivePosition.clone());
     driveVelocity = driveTalon.getVelocity();
     driveAppliedVolts = driveTalon.getMotorVoltage();
     driveCurrent = driveTalon.getStatorCurrent();
@@ -207,31 +223,32 @@ public class ModuleIOReal implements ModuleIO {
     BaseStatusSignal.setUpdateFrequencyForAll(50.0, driveVelocity, driveAppliedVolts, driveCurrent);
     driveTalon.optimizeBusUtilization();
 
-    // turnPositionQueue =
-    //     HybridOdometryThread.getInstance()
-    //         .registerSignal(
-    //             () -> {
-    //               double value = turnRelativeEncoder.getPosition();
-    //               if (turnSparkMax.getLastError() == REVLibError.kOk) {
-    //                 return OptionalDouble.of(value);
-    //               } else {
-    //                 return OptionalDouble.empty();
-    //               }
-    //             });
+    turnPositionQueue =
+        HybridOdometryThread.getInstance()
+            .registerSignal(
+                "CANSparkMax " + turnSparkMax.getDeviceId() + "/Position",
+                () -> {
+                  double value = turnRelativeEncoder.getPosition();
+                  if (turnSparkMax.getLastError() == REVLibError.kOk) {
+                    return OptionalDouble.of(value);
+                  } else {
+                    return OptionalDouble.empty();
+                  }
+                });
+    HybridOdometryThread.getInstance()
+        .registerFrequencyListener(
+            (frequency) ->
+                turnSparkMax.setPeriodicFramePeriod(
+                    PeriodicFrame.kStatus2, (int) (1000.0 / frequency)));
   }
 
   @Override
   public void processInputs(ModuleIOInputsAutoLogged inputs) {
-    if (iLoveRev % 25 == 0) {
-      turnRelativeEncoder.setPosition(getAbsoluteEncoder());
-    }
-
     BaseStatusSignal.refreshAll(drivePosition, driveVelocity, driveAppliedVolts, driveCurrent);
 
-    inputs.drivePositionRad =
-        Units.rotationsToRadians(drivePosition.getValueAsDouble()) / DriveConstants.driveRatio;
-    inputs.driveVelocityRadPerSec =
-        Units.rotationsToRadians(driveVelocity.getValueAsDouble()) / DriveConstants.driveRatio;
+    // SensorToMechanismRatio makes the Talon's mechanism the wheel surface, so it reports meters
+    inputs.drivePositionMeters = drivePosition.getValueAsDouble();
+    inputs.driveVelocityMetersPerSec = driveVelocity.getValueAsDouble();
     inputs.driveAppliedVolts = driveAppliedVolts.getValueAsDouble();
     inputs.driveCurrentAmps = new double[] {driveCurrent.getValueAsDouble()};
 
@@ -240,29 +257,59 @@ public class ModuleIOReal implements ModuleIO {
     inputs.turnVelocityRadPerSec = turnRelativeEncoder.getVelocity();
     inputs.turnAppliedVolts = turnSparkMax.getAppliedOutput() * turnSparkMax.getBusVoltage();
     inputs.turnCurrentAmps = new double[] {turnSparkMax.getOutputCurrent()};
+    updateTurnDrift();
+
+    // All three buffers are written together by the odometry thread, so the counts match
+    int sampleCount = timestampQueue.drainTo(timestampSamples);
+    drivePositionQueue.drainTo(drivePositionSamples);
+    turnPositionQueue.drainTo(turnPositionSamples);
+    inputs.odometryTimestamps = new double[sampleCount];
+    inputs.odometryDrivePositionsMeters = new double[sampleCount];
+    inputs.odometryTurnPositionsRad = new double[sampleCount];
+    System.arraycopy(timestampSamples, 0, inputs.odometryTimestamps, 0, sampleCount);
+    System.arraycopy(drivePositionSamples, 0, inputs.odometryDrivePositionsMeters, 0, sampleCount);
+    // The turn encoder's conversion factor already reports radians
+    System.arraycopy(turnPositionSamples, 0, inputs.odometryTurnPositionsRad, 0, sampleCount);
+  }
+
+  /**
+   * Compares the absolute encoder with the relative encoder and reseeds the relative encoder when
+   * they have disagreed by more than {@link DriveConstants#turnReseedThresholdRad} for {@link
+   * DriveConstants#turnReseedDebounceSecs} while the module isn't turning. The analog and CAN
+   * readings are sampled at different times, so they're only compared when the module is still.
+   */
+  private void updateTurnDrift() {
+    double relativePosition = turnRelativeEncoder.getPosition();
+    double absolutePosition = getAbsoluteEncoder();
+    double drift = MathUtil.angleModulus(absolutePosition - relativePosition);
+    // The velocity conversion factor is for the motor shaft
+    double moduleVelocity = turnRelativeEncoder.getVelocity() / DriveConstants.turnRatio;
+
+    if (Math.abs(drift) > DriveConstants.turnReseedThresholdRad
+        && Math.abs(moduleVelocity) < DriveConstants.turnReseedMaxVelocityRadPerSec) {
+      double timestamp = Timer.getFPGATimestamp();
+      if (Double.isNaN(driftStartTimestamp)) {
+        driftStartTimestamp = timestamp;
+      } else if (timestamp - driftStartTimestamp >= DriveConstants.turnReseedDebounceSecs
+          && Double.isNaN(reseedPosition)) {
+        // Shift by the drift rather than setting the wrapped angle, so the position stays
+        // continuous. The drift has to persist again before another reseed.
+        reseedPosition = relativePosition + drift;
+        reseedCount++;
+        driftStartTimestamp = Double.NaN;
+      }
+    } else {
+      driftStartTimestamp = Double.NaN;
+    }
 
-    // inputs.odometryTimestamps =
-    //     timestampQueue.stream().mapToDouble((Double value) -> value).toArray();
-    // inputs.odometryDrivePositionsRad =
-    //     drivePositionQueue.stream()
-    //         .mapToDouble(
-    //             (Double value) -> Units.rotationsToRadians(value) / DriveConstants.driveRatio)
-    //         .toArray();
-    // inputs.odometryTurnPositions =
-    //     turnPositionQueue.stream()
-    //         .map((Double value) -> Rotation2d.fromRotations(value / DriveConstants.turnRatio))
-    //         .toArray(Rotation2d[]::new);
-    // timestampQueue.clear();
-    // drivePositionQueue.clear();
-    // turnPositionQueue.clear();
-
-    Logger.recordOutput("Test/" + name + "/GetAbsoluteEncoder", getAbsoluteEncoder());
-    iLoveRev++;
+    Logger.recordOutput("Drive/" + name + " Module/TurnAbsolutePositionRad", absolutePosition);
+    Logger.recordOutput("Drive/" + name + " Module/TurnDriftRad", drift);
+    Logger.recordOutput("Drive/" + name + " Module/TurnReseeds", reseedCount);
   }
 
   @Override
   public void runDriveVoltage(double volts) {
-    driveTalon.setControl(new VoltageOut(MathUtil.clamp(volts, -12, 12)));
+    driveTalon.setControl(driveVoltageRequest.withOutput(MathUtil.clamp(volts, -12, 12)));
   }
 
   @Override
@@ -291,23 +338,16 @@ public class ModuleIOReal implements ModuleIO {
   @Override
   public void runDriveVelocitySetpoint(
       final double metersPerSecond, final double metersPerSecondSquared) {
-    // Doesnt actually refresh drive velocity signal, but should be cached
-    if (metersPerSecond == 0
-        && metersPerSecondSquared == 0
-        && MathUtil.isNear(0.0, driveVelocity.getValueAsDouble(), 0.1)) {
-      runDriveVoltage(0.0);
-    } else {
-      runDriveVoltage(
-          Math.signum(metersPerSecond)
-              * Math.pow((metersPerSecond / DriveConstants.maxLinearVelocity), 2)
-              * 12.0
-              * multiplier);
-    }
+    // Closed loop on the Talon at 1 kHz, with Slot0's kS, kV and kA as feedforward
+    driveTalon.setControl(
+        driveVelocityRequest
+            .withVelocity(metersPerSecond * multiplier)
+            .withAcceleration(metersPerSecondSquared * multiplier));
   }
 
   @Override
   public void runTurnPositionSetpoint(double angleRads) {
-    // inputs.targetPosition = getAdjustedAngle(angleRads);
+    // inputs.targetPositionRad = getAdjustedAngle(angleRads).getRadians();
     turnPID.setReference(angleRads, ControlType.kPosition);
   }
 
@@ -339,11 +379,20 @@ public class ModuleIOReal implements ModuleIO {
     return (radians + Math.PI) % (2 * Math.PI) - Math.PI;
   }
 
+  @Override
+  public void sendQueuedWrites() {
+    // The SparkMax's CAN timeout is zero, so this doesn't wait for the write to be acknowledged
+    if (!Double.isNaN(reseedPosition)) {
+      turnRelativeEncoder.setPosition(reseedPosition);
+      reseedPosition = Double.NaN;
+    }
+  }
+
   @Override
   public void stop() {
     var driveRequest = driveTalon.getAppliedControl();
     if (driveRequest instanceof VoltageOut) {
-      driveTalon.setControl(new NeutralOut());
+      driveTalon.setControl(driveNeutralRequest);
     }
     runTurnVoltage(0);
   }
@@ -31,6 +31,8 @@ public class ModuleIOReplay implements ModuleIO {
   /** Disable output to all motors */
   public void stop() {}
 
+  public void sendQueuedWrites() {}
+
   public String getModuleName() {
     return null;
   }
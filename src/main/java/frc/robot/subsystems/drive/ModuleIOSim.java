@@ -61,8 +61,9 @@ public class ModuleIOSim implements ModuleIO {
     driveSim.update(SimConstants.loopTime);
     turnSim.update(SimConstants.loopTime);
 
-    inputs.drivePositionRad = driveSim.getAngularPositionRad();
-    inputs.driveVelocityRadPerSec = driveSim.getAngularVelocityRadPerSec();
+    inputs.drivePositionMeters = driveSim.getAngularPositionRad() * DriveConstants.wheelRadius;
+    inputs.driveVelocityMetersPerSec =
+        driveSim.getAngularVelocityRadPerSec() * DriveConstants.wheelRadius;
     inputs.driveAppliedVolts = driveAppliedVolts;
     inputs.driveCurrentAmps = new double[] {Math.abs(driveSim.getCurrentDrawAmps())};
 
@@ -74,8 +75,8 @@ public class ModuleIOSim implements ModuleIO {
     inputs.turnCurrentAmps = new double[] {Math.abs(turnSim.getCurrentDrawAmps())};
 
     inputs.odometryTimestamps = new double[] {Timer.getFPGATimestamp()};
-    inputs.odometryDrivePositionsRad = new double[] {inputs.drivePositionRad};
-    inputs.odometryTurnPositions = new Rotation2d[] {inputs.turnPosition};
+    inputs.odometryDrivePositionsMeters = new double[] {inputs.drivePositionMeters};
+    inputs.odometryTurnPositionsRad = new double[] {turnSim.getAngularPositionRad()};
   }
 
   @Override
@@ -91,13 +92,13 @@ public class ModuleIOSim implements ModuleIO {
   }
 
   @Override
-  public void runDriveVelocitySetpoint(double velocityRadsPerSec, double feedForward) {
+  public void runDriveVelocitySetpoint(double metersPerSecond, double metersPerSecondSquared) {
     runDriveVoltage(
         //     feedForward
         //         + driveFeedback.calculate(driveSim.getAngularVelocityRadPerSec(),
-        // velocityRadsPerSec));
-        Math.signum(velocityRadsPerSec)
-            * Math.pow((velocityRadsPerSec / DriveConstants.maxLinearVelocity), 2)
+        // metersPerSecond));
+        Math.signum(metersPerSecond)
+            * Math.pow((metersPerSecond / DriveConstants.maxLinearVelocity), 2)
             * 12.0);
   }
 
@@ -132,6 +133,9 @@ public class ModuleIOSim implements ModuleIO {
     runTurnVoltage(0.0);
   }
 
+  @Override
+  public void sendQueuedWrites() {}
+
   @Override
   public String getModuleName() {
     return name;
@@ -0,0 +1,111 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.util.struct.Struct;
+import edu.wpi.first.util.struct.StructSerializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Health counters for an odometry signal (or the total across a thread's signals), logged as a
+ * struct so the whole pipeline fits in a few bytes per cycle.
+ *
+ * <p>Counts are cumulative since the thread started, except {@link #samplesConsumed} which covers
+ * the current cycle only.
+ */
+public class OdometryHealth implements StructSerializable {
+  /** Samples written to the buffer. */
+  public long produced = 0;
+
+  /** Samples not written because a buffer was full or a signal in the same sample was invalid. */
+  public long dropped = 0;
+
+  /** Samples where the signal could not be read. */
+  public long invalid = 0;
+
+  /** Samples where the signal had not updated since the previous sample. */
+  public long stale = 0;
+
+  /** Samples drained by the main loop this cycle. */
+  public int samplesConsumed = 0;
+
+  /** Copies the counters of a buffer into this entry. */
+  void set(OdometrySampleBuffer buffer) {
+    produced = buffer.getProducedCount();
+    dropped = buffer.getDroppedCount();
+    invalid = buffer.getInvalidCount();
+    stale = buffer.getStaleCount();
+    samplesConsumed = buffer.getLastDrainCount();
+  }
+
+  /** Adds the counters of another entry to this one, except the consumed sample count. */
+  void add(OdometryHealth other) {
+    produced += other.produced;
+    dropped += other.dropped;
+    invalid += other.invalid;
+    stale += other.stale;
+  }
+
+  void clear() {
+    produced = 0;
+    dropped = 0;
+    invalid = 0;
+    stale = 0;
+    samplesConsumed = 0;
+  }
+
+  public static final OdometryHealthStruct struct = new OdometryHealthStruct();
+
+  public static class OdometryHealthStruct implements Struct<OdometryHealth> {
+    @Override
+    public Class<OdometryHealth> getTypeClass() {
+      return OdometryHealth.class;
+    }
+
+    @Override
+    public String getTypeString() {
+      return "struct:OdometryHealth";
+    }
+
+    @Override
+    public int getSize() {
+      return kSizeInt64 * 4 + kSizeInt32;
+    }
+
+    @Override
+    public String getSchema() {
+      return "int64 produced;int64 dropped;int64 invalid;int64 stale;int32 samplesConsumed";
+    }
+
+    @Override
+    public OdometryHealth unpack(ByteBuffer bb) {
+      OdometryHealth health = new OdometryHealth();
+      health.produced = bb.getLong();
+      health.dropped = bb.getLong();
+      health.invalid = bb.getLong();
+      health.stale = bb.getLong();
+      health.samplesConsumed = bb.getInt();
+      return health;
+    }
+
+    @Override
+    public void pack(ByteBuffer bb, OdometryHealth value) {
+      bb.putLong(value.produced);
+      bb.putLong(value.dropped);
+      bb.putLong(value.invalid);
+      bb.putLong(value.stale);
+      bb.putInt(value.samplesConsumed);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import frc.robot.Constants.DriveConstants;
+import java.util.Arrays;
+
+/**
+ * Integrates the odometry samples received each cycle into the pose estimator.
+ *
+ * <p>Each sample's module positions are turned into deltas, checked for wheel slip against the
+ * gyro rotation, and summed into the distances the estimator sees, so a slipping wheel doesn't move
+ * the pose. When the gyro isn't sampled with the modules the latest gyro angle is used, and when
+ * it's disconnected the rotation comes from the module deltas. Integrating samples doesn't
+ * allocate. Main loop only.
+ */
+public class OdometryIntegrator {
+  private final int moduleCount;
+  private final SwerveKinematics kinematics;
+  private final WheelSlipFilter slipFilter;
+  private final SwervePoseEstimator poseEstimator;
+
+  private double rawGyroRadians = 0.0;
+  private double lastYaw = Double.NaN; // NaN when the last sample had no gyro angle
+
+  // Reused for every sample
+  private final double[] distances; // Sum of the filtered deltas
+  private final double[] angles;
+  private final double[] lastModuleDistances; // For delta tracking
+  private final double[] deltas;
+  private final double[] twist = new double[3];
+
+  public OdometryIntegrator(
+      SwerveKinematics kinematics, WheelSlipFilter slipFilter, SwervePoseEstimator poseEstimator) {
+    moduleCount = kinematics.getModuleCount();
+    this.kinematics = kinematics;
+    this.slipFilter = slipFilter;
+    this.poseEstimator = poseEstimator;
+    distances = new double[moduleCount];
+    angles = new double[moduleCount];
+    lastModuleDistances = new double[moduleCount];
+    deltas = new double[moduleCount];
+  }
+
+  /**
+   * Integrates the samples received this cycle.
+   *
+   * @param timestamps Timestamps of the samples in seconds.
+   * @param sampleCount Number of samples, read from the start of each array.
+   * @param drivePositionsMeters Drive position of each sample, one array per module.
+   * @param turnPositionsRad Turn angle of each sample in radians, one array per module.
+   * @param gyroConnected Whether the gyro is connected.
+   * @param yawTimestamps Timestamps of the gyro samples, empty if the gyro isn't sampled with the
+   *     modules.
+   * @param yawPositions Gyro angles of the gyro samples.
+   * @param yawRad Latest gyro angle in radians, used when the gyro isn't sampled.
+   */
+  public void integrate(
+      double[] timestamps,
+      int sampleCount,
+      double[][] drivePositionsMeters,
+      double[][] turnPositionsRad,
+      boolean gyroConnected,
+      double[] yawTimestamps,
+      Rotation2d[] yawPositions,
+      double yawRad) {
+    for (int i = 0; i < sampleCount; i++) {
+      // Read wheel positions and deltas from each module
+      for (int moduleIndex = 0; moduleIndex < moduleCount; moduleIndex++) {
+        double distanceMeters = drivePositionsMeters[moduleIndex][i];
+        deltas[moduleIndex] = distanceMeters - lastModuleDistances[moduleIndex];
+        lastModuleDistances[moduleIndex] = distanceMeters;
+        angles[moduleIndex] = turnPositionsRad[moduleIndex][i];
+      }
+
+      // Update gyro angle
+      if (gyroConnected && yawPositions.length > 0) {
+        // Use the real gyro angle, and check the module deltas against its rotation
+        double yaw = getYaw(yawTimestamps, yawPositions, i, timestamps[i]);
+        if (DriveConstants.wheelSlipRejection && !Double.isNaN(lastYaw)) {
+          slipFilter.filter(deltas, angles, MathUtil.angleModulus(yaw - lastYaw));
+        }
+        rawGyroRadians = yaw;
+        lastYaw = yaw;
+      } else if (gyroConnected) {
+        // The gyro is not sampled at the odometry rate, use the latest angle
+        rawGyroRadians = yawRad;
+        lastYaw = Double.NaN;
+      } else {
+        // Use the angle delta from the module deltas
+        kinematics.toTwist2d(deltas, angles, twist);
+        rawGyroRadians += twist[2];
+        lastYaw = Double.NaN;
+      }
+
+      // Odometry distances follow the filtered deltas, so a slipping wheel doesn't move the pose
+      for (int moduleIndex = 0; moduleIndex < moduleCount; moduleIndex++) {
+        distances[moduleIndex] += deltas[moduleIndex];
+      }
+
+      poseEstimator.updateWithTime(timestamps[i], rawGyroRadians, distances, angles);
+    }
+  }
+
+  /**
+   * Resets the estimator to a pose from the filtered odometry distances, which drift from the wheel
+   * positions with slip.
+   */
+  public void resetPosition(Pose2d pose) {
+    SwerveModulePosition[] positions = new SwerveModulePosition[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      positions[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+    }
+    poseEstimator.resetPosition(new Rotation2d(rawGyroRadians), positions, pose);
+  }
+
+  /**
+   * Returns the gyro yaw in radians at the time of an odometry sample. The gyro is sampled with the
+   * modules so the samples normally line up, otherwise the yaw is interpolated between the nearest
+   * samples.
+   */
+  private static double getYaw(
+      double[] yawTimestamps, Rotation2d[] yawPositions, int sampleIndex, double timestamp) {
+    if (sampleIndex < yawTimestamps.length && yawTimestamps[sampleIndex] == timestamp) {
+      return yawPositions[sampleIndex].getRadians();
+    }
+
+    int index = Arrays.binarySearch(yawTimestamps, timestamp);
+    if (index >= 0) {
+      return yawPositions[index].getRadians();
+    }
+    int next = -index - 1;
+    if (next == 0) {
+      return yawPositions[0].getRadians();
+    } else if (next == yawTimestamps.length) {
+      return yawPositions[yawTimestamps.length - 1].getRadians();
+    }
+    double previousYaw = yawPositions[next - 1].getRadians();
+    return previousYaw
+        + MathUtil.angleModulus(yawPositions[next].getRadians() - previousYaw)
+            * (timestamp - yawTimestamps[next - 1])
+            / (yawTimestamps[next] - yawTimestamps[next - 1]);
+  }
+}
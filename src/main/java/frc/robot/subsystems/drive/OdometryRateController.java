@@ -0,0 +1,81 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.wpilibj.RobotController;
+import frc.robot.Constants.DriveConstants;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Picks the highest odometry sample rate the RIO CAN bus can sustain.
+ *
+ * <p>Once per evaluation period, the rate is stepped down if the bus is saturated or too many
+ * samples fail to read, and stepped back up when the bus has headroom and every sample is good. The
+ * odometry thread applies the new rate to its signal update frequencies and status frame periods.
+ */
+public class OdometryRateController {
+  private final HybridOdometryThread thread;
+
+  private double lastEvaluationTimestamp = 0.0;
+  private long lastPublishedSamples = 0;
+  private long lastInvalidSamples = 0;
+  private long lastDroppedSamples = 0;
+  private double busUtilization = 0.0;
+  private double invalidFraction = 0.0;
+
+  public OdometryRateController(HybridOdometryThread thread) {
+    this.thread = thread;
+  }
+
+  /** Re-evaluates the sample rate if an evaluation period has passed. Main loop only. */
+  public void periodic() {
+    double timestamp = Logger.getRealTimestamp() / 1e6;
+    if (timestamp - lastEvaluationTimestamp >= DriveConstants.odometryFrequencyPeriodSecs) {
+      long published = thread.getPublishedSamples();
+      long invalid = thread.getInvalidSamples();
+      long dropped = thread.getDroppedSamples();
+      long publishedDelta = published - lastPublishedSamples;
+      long failedDelta = (invalid - lastInvalidSamples) + (dropped - lastDroppedSamples);
+
+      busUtilization = RobotController.getCANStatus().percentBusUtilization;
+      invalidFraction = (double) failedDelta / Math.max(1, publishedDelta + failedDelta);
+
+      // Only adjust once samples are flowing, otherwise there is nothing to measure
+      if (lastEvaluationTimestamp > 0.0 && publishedDelta + failedDelta > 0) {
+        double frequency = thread.getFrequency();
+        if (busUtilization > DriveConstants.highBusUtilization
+            || invalidFraction > DriveConstants.maxInvalidSampleFraction) {
+          frequency -= DriveConstants.odometryFrequencyStep;
+        } else if (busUtilization < DriveConstants.lowBusUtilization && failedDelta == 0) {
+          frequency += DriveConstants.odometryFrequencyStep;
+        }
+        thread.setFrequency(
+            MathUtil.clamp(
+                frequency,
+                DriveConstants.minOdometryFrequency,
+                DriveConstants.maxOdometryFrequency));
+      }
+
+      lastEvaluationTimestamp = timestamp;
+      lastPublishedSamples = published;
+      lastInvalidSamples = invalid;
+      lastDroppedSamples = dropped;
+    }
+
+    Logger.recordOutput("Odometry/Frequency", thread.getFrequency());
+    Logger.recordOutput("Odometry/BusUtilization", busUtilization);
+    Logger.recordOutput("Odometry/InvalidSampleFraction", invalidFraction);
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-producer/single-consumer ring buffer of primitive samples, used to hand high-frequency
+ * odometry measurements from a sampling thread to the main loop.
+ *
+ * <p>The producer (an odometry thread) only ever calls {@link #offer(double)} and the consumer (the
+ * main loop) only ever calls {@link #drainTo(double[])}, so neither side takes a lock and no
+ * samples are boxed. When the buffer is full, new samples are rejected and counted rather than
+ * silently discarded, see {@link #getOverflowCount()}.
+ *
+ * <p>Each buffer belongs to the {@link OdometrySequence} of the thread that writes it, and only
+ * drains the samples included in that sequence's latest snapshot. The thread also records samples
+ * it could not produce for this signal, which are reported through {@link OdometryHealth}.
+ */
+public class OdometrySampleBuffer {
+  public static final int defaultCapacity = 32;
+
+  private final OdometrySequence sequence;
+  private final String name;
+  private final double[] samples;
+  private final int mask;
+  private final long startIndex;
+
+  // Absolute indices, only ever increasing. "head" is written by the producer and "tail" by the
+  // consumer; each side publishes with lazySet so the other side sees fully written samples.
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long overflowCount = 0;
+
+  // Written by the producer only
+  private volatile long droppedCount = 0;
+  private volatile long invalidCount = 0;
+  private volatile long staleCount = 0;
+
+  // Consumer only
+  private int lastDrainCount = 0;
+
+  public OdometrySampleBuffer(OdometrySequence sequence, String name) {
+    this(sequence, name, defaultCapacity);
+  }
+
+  /**
+   * Creates a new buffer. Must not be called while the owning thread is writing a sample.
+   *
+   * @param sequence Sequence of the thread that writes this buffer.
+   * @param name Name of the signal, used for telemetry.
+   * @param capacity Minimum number of samples the buffer can hold, rounded up to a power of two.
+   */
+  public OdometrySampleBuffer(OdometrySequence sequence, String name, int capacity) {
+    this.sequence = sequence;
+    this.name = name;
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    samples = new double[size];
+    mask = size - 1;
+
+    // Index samples by sequence number, so drains line up with the snapshot
+    startIndex = sequence.getPublishedCount();
+    head.set(startIndex);
+    tail.set(startIndex);
+  }
+
+  /**
+   * Adds a sample to the buffer. Producer thread only.
+   *
+   * @return False if the buffer was full and the sample was rejected.
+   */
+  public boolean offer(double value) {
+    long currentHead = head.get();
+    if (currentHead - tail.get() >= samples.length) {
+      overflowCount++;
+      return false;
+    }
+    samples[(int) (currentHead & mask)] = value;
+    head.lazySet(currentHead + 1);
+    return true;
+  }
+
+  /** Returns the number of samples that can be offered before the buffer is full. */
+  public int remainingCapacity() {
+    return samples.length - (int) (head.get() - tail.get());
+  }
+
+  /** Returns the number of samples waiting to be drained. */
+  public int size() {
+    return (int) (head.get() - tail.get());
+  }
+
+  /** Returns the maximum number of samples the buffer can hold. */
+  public int capacity() {
+    return samples.length;
+  }
+
+  /**
+   * Moves the samples in the latest snapshot (up to the length of the destination) into an array,
+   * oldest first. Consumer thread only.
+   *
+   * @return The number of samples written to the destination.
+   */
+  public int drainTo(double[] destination) {
+    long currentTail = tail.get();
+    long available = Math.min(head.get(), sequence.getReadLimit()) - currentTail;
+    int count = (int) Math.max(0, Math.min(available, destination.length));
+    for (int i = 0; i < count; i++) {
+      destination[i] = samples[(int) ((currentTail + i) & mask)];
+    }
+    tail.lazySet(currentTail + count);
+    lastDrainCount = count;
+    return count;
+  }
+
+  /** Records a sample lost because the whole sample was discarded. Producer thread only. */
+  void markDropped() {
+    droppedCount++;
+  }
+
+  /** Records a sample where this signal could not be read. Producer thread only. */
+  void markInvalid() {
+    invalidCount++;
+  }
+
+  /** Records a sample where this signal had not updated since the last one. Producer only. */
+  void markStale() {
+    staleCount++;
+  }
+
+  /** Returns the name of the signal. */
+  public String getName() {
+    return name;
+  }
+
+  /** Returns the number of samples written to the buffer. */
+  public long getProducedCount() {
+    return head.get() - startIndex;
+  }
+
+  /** Returns the number of samples lost, whether rejected by this buffer or discarded whole. */
+  public long getDroppedCount() {
+    return droppedCount + overflowCount;
+  }
+
+  /** Returns the number of samples where this signal could not be read. */
+  public long getInvalidCount() {
+    return invalidCount;
+  }
+
+  /** Returns the number of samples where this signal had not updated since the last one. */
+  public long getStaleCount() {
+    return staleCount;
+  }
+
+  /** Returns the number of samples moved out by the most recent drain. Consumer thread only. */
+  public int getLastDrainCount() {
+    return lastDrainCount;
+  }
+
+  /** Returns the number of samples rejected because the buffer was full. */
+  public long getOverflowCount() {
+    return overflowCount;
+  }
+
+  /** Records a discarded sample on every buffer in the list. Producer thread only. */
+  static void markDropped(List<OdometrySampleBuffer> buffers) {
+    for (int i = 0; i < buffers.size(); i++) {
+      buffers.get(i).markDropped();
+    }
+  }
+
+  /** Returns true if every buffer in the list can accept another sample. */
+  static boolean hasCapacity(List<OdometrySampleBuffer> buffers) {
+    for (int i = 0; i < buffers.size(); i++) {
+      if (buffers.get(i).remainingCapacity() == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
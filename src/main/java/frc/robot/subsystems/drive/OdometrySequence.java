@@ -0,0 +1,71 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sequence counter shared by an odometry thread and its buffers, used to hand whole samples to the
+ * main loop without a lock.
+ *
+ * <p>The thread brackets each sample with {@link #beginWrite()} and {@link #endWrite()}, writing
+ * one value into every buffer in between. Once per cycle, before any IO drains its buffers, the
+ * main loop calls {@link #latch()} to capture how many samples are complete. Every buffer is then
+ * drained up to that point, so all modules and the gyro see the same samples even if the thread
+ * writes more while they are being drained. Neither side ever waits on the other; a sample that is
+ * half written when the main loop latches is left for the next cycle and counted in {@link
+ * #getContentionCount()}.
+ */
+public class OdometrySequence {
+  // Even while idle, odd while a sample is being written
+  private final AtomicLong sequence = new AtomicLong();
+
+  // Only accessed from the main loop
+  private long readLimit = 0;
+  private long contentionCount = 0;
+
+  /** Marks the start of a sample. Producer thread only. */
+  void beginWrite() {
+    sequence.lazySet(sequence.get() + 1);
+  }
+
+  /** Publishes a sample once it has been written to every buffer. Producer thread only. */
+  void endWrite() {
+    sequence.set(sequence.get() + 1);
+  }
+
+  /** Returns the number of samples published so far. */
+  long getPublishedCount() {
+    return sequence.get() / 2;
+  }
+
+  /** Captures the samples published so far as this cycle's snapshot. Main loop only. */
+  public void latch() {
+    long current = sequence.get();
+    if ((current & 1) != 0) {
+      contentionCount++;
+    }
+    readLimit = current / 2;
+  }
+
+  /** Returns the number of samples included in the latest snapshot. Main loop only. */
+  long getReadLimit() {
+    return readLimit;
+  }
+
+  /** Returns the number of times the main loop latched while a sample was being written. */
+  public long getContentionCount() {
+    return contentionCount;
+  }
+}
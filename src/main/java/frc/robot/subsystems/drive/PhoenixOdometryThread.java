@@ -17,17 +17,17 @@ import com.ctre.phoenix6.BaseStatusSignal;
 import com.ctre.phoenix6.CANBus;
 import com.ctre.phoenix6.StatusSignal;
 import com.ctre.phoenix6.hardware.ParentDevice;
+import edu.wpi.first.wpilibj.Threads;
 import frc.robot.Constants.DriveConstants;
+import frc.util.TimingHistogram;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import org.littletonrobotics.junction.Logger;
 
 /**
- * Provides an interface for asynchronously reading high-frequency measurements to a set of queues.
+ * Provides an interface for asynchronously reading high-frequency measurements to a set of buffers.
  *
  * <p>This version is intended for Phoenix 6 devices on both the RIO and CANivore buses. When using
  * a CANivore, the thread uses the "waitForAll" blocking method to enable more consistent sampling.
@@ -38,9 +38,14 @@ public class PhoenixOdometryThread extends Thread {
   private final Lock signalsLock =
       new ReentrantLock(); // Prevents conflicts when registering signals
   private BaseStatusSignal[] signals = new BaseStatusSignal[0];
-  private final List<Queue<Double>> queues = new ArrayList<>();
-  private final List<Queue<Double>> timestampQueues = new ArrayList<>();
+  private final List<OdometrySampleBuffer> queues = new ArrayList<>();
+  private final List<OdometrySampleBuffer> timestampQueues = new ArrayList<>();
+  private final OdometrySequence sequence = new OdometrySequence();
   private boolean isCANFD = false;
+  private volatile long droppedSamples = 0;
+  private final TimingHistogram intervalHistogram = new TimingHistogram(0.0005, 24);
+  private final TimingHistogram latencyHistogram = new TimingHistogram(0.0005, 24);
+  private double lastSampleTimestamp = 0.0;
 
   private static PhoenixOdometryThread instance = null;
 
@@ -63,11 +68,18 @@ public class PhoenixOdometryThread extends Thread {
     }
   }
 
-  public Queue<Double> registerSignal(ParentDevice device, StatusSignal<Double> signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
+  public OdometrySampleBuffer registerSignal(ParentDevice device, StatusSignal<Double> signal) {
+    OdometrySampleBuffer queue;
     signalsLock.lock();
-    Drive.odometryLock.lock();
     try {
+      queue =
+          new OdometrySampleBuffer(
+              sequence,
+              device.getClass().getSimpleName()
+                  + " "
+                  + device.getDeviceID()
+                  + "/"
+                  + signal.getName());
       isCANFD = CANBus.isNetworkFD(device.getNetwork());
       BaseStatusSignal[] newSignals = new BaseStatusSignal[signals.length + 1];
       System.arraycopy(signals, 0, newSignals, 0, signals.length);
@@ -76,24 +88,36 @@ public class PhoenixOdometryThread extends Thread {
       queues.add(queue);
     } finally {
       signalsLock.unlock();
-      Drive.odometryLock.unlock();
     }
     return queue;
   }
 
-  public Queue<Double> makeTimestampQueue() {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  public OdometrySampleBuffer makeTimestampQueue() {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
     try {
+      queue = new OdometrySampleBuffer(sequence, "Timestamp");
       timestampQueues.add(queue);
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
     return queue;
   }
 
+  /** Captures the samples published so far for the main loop to drain this cycle. */
+  public void latchSamples() {
+    sequence.latch();
+  }
+
+  /** Returns the number of cycles where the main loop latched while a sample was being written. */
+  public long getContentionCount() {
+    return sequence.getContentionCount();
+  }
+
   @Override
   public void run() {
+    Threads.setCurrentThreadPriority(
+        DriveConstants.odometryThreadRealTime, DriveConstants.odometryThreadPriority);
     while (true) {
       // Wait for updates from all signals
       signalsLock.lock();
@@ -114,26 +138,60 @@ public class PhoenixOdometryThread extends Thread {
         signalsLock.unlock();
       }
 
-      // Save new data to queues
-      Drive.odometryLock.lock();
+      // Save new data to queues. The main loop never takes this lock, it only drains samples that
+      // have been published to the sequence.
+      signalsLock.lock();
       try {
         double timestamp = Logger.getRealTimestamp() / 1e6;
+        if (lastSampleTimestamp > 0.0) {
+          intervalHistogram.record(timestamp - lastSampleTimestamp);
+        }
+        lastSampleTimestamp = timestamp;
         double totalLatency = 0.0;
-        for (BaseStatusSignal signal : signals) {
-          totalLatency += signal.getTimestamp().getLatency();
+        for (int i = 0; i < signals.length; i++) {
+          totalLatency += signals[i].getTimestamp().getLatency();
+          if (!signals[i].getStatus().isOK()) {
+            queues.get(i).markInvalid();
+          }
         }
         if (signals.length > 0) {
           timestamp -= totalLatency / signals.length;
+          latencyHistogram.record(totalLatency / signals.length);
         }
+
+        // Only write whole samples so every buffer stays aligned with the timestamps
+        if (!OdometrySampleBuffer.hasCapacity(queues)
+            || !OdometrySampleBuffer.hasCapacity(timestampQueues)) {
+          OdometrySampleBuffer.markDropped(queues);
+          droppedSamples++;
+          continue;
+        }
+        sequence.beginWrite();
         for (int i = 0; i < signals.length; i++) {
           queues.get(i).offer(signals[i].getValueAsDouble());
         }
         for (int i = 0; i < timestampQueues.size(); i++) {
           timestampQueues.get(i).offer(timestamp);
         }
+        sequence.endWrite();
       } finally {
-        Drive.odometryLock.unlock();
+        signalsLock.unlock();
       }
     }
   }
+
+  /** Returns the histogram of time between samples. */
+  public TimingHistogram getIntervalHistogram() {
+    return intervalHistogram;
+  }
+
+  /** Returns the histogram of average signal latency when each sample is read. */
+  public TimingHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /** Returns the number of samples discarded because the main loop did not drain the buffers. */
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
 }
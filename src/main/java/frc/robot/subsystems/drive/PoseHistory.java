@@ -0,0 +1,174 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Recent estimated poses, written by the main loop and readable from any thread.
+ *
+ * <p>Poses are kept in a fixed-size ring buffer of primitives along with the latest measured
+ * velocity. Lookups between two poses are interpolated, lookups past the newest pose are projected
+ * forward with the velocity, and lookups before the oldest pose return the oldest one.
+ *
+ * <p>Readers never take a lock: they read optimistically and retry if the main loop wrote in the
+ * meantime, so a reader can never delay the main loop and nothing allocates on either side.
+ */
+public class PoseHistory {
+  private final StampedLock lock = new StampedLock();
+  private final double maxExtrapolationSecs;
+
+  // Guarded by the lock. Absolute indices, the record at index i lives at i & mask.
+  private final int mask;
+  private final double[] timestamps;
+  private final double[] xs;
+  private final double[] ys;
+  private final double[] thetas;
+  private long head = 0;
+  private long tail = 0;
+
+  // Field-relative velocity, guarded by the lock
+  private double vx = 0.0;
+  private double vy = 0.0;
+  private double omega = 0.0;
+
+  /**
+   * Creates a new pose history.
+   *
+   * @param capacity Number of poses to keep, rounded up to a power of two.
+   * @param maxExtrapolationSecs Furthest past the newest pose that lookups will project.
+   */
+  public PoseHistory(int capacity, double maxExtrapolationSecs) {
+    int roundedCapacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = roundedCapacity - 1;
+    timestamps = new double[roundedCapacity];
+    xs = new double[roundedCapacity];
+    ys = new double[roundedCapacity];
+    thetas = new double[roundedCapacity];
+    this.maxExtrapolationSecs = maxExtrapolationSecs;
+  }
+
+  /** Records a pose. Poses at or before the newest recorded one are ignored. Main loop only. */
+  public void addPose(double timestamp, double x, double y, double thetaRad) {
+    long stamp = lock.writeLock();
+    try {
+      if (head > tail && timestamp <= timestamps[(int) ((head - 1) & mask)]) {
+        return;
+      }
+      if (head - tail > mask) {
+        tail++;
+      }
+      int index = (int) (head & mask);
+      timestamps[index] = timestamp;
+      xs[index] = x;
+      ys[index] = y;
+      thetas[index] = thetaRad;
+      head++;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Sets the velocity used to project poses forward. Main loop only.
+   *
+   * @param vxMetersPerSec Field-relative X velocity.
+   * @param vyMetersPerSec Field-relative Y velocity.
+   * @param omegaRadPerSec Angular velocity.
+   */
+  public void setVelocity(double vxMetersPerSec, double vyMetersPerSec, double omegaRadPerSec) {
+    long stamp = lock.writeLock();
+    try {
+      vx = vxMetersPerSec;
+      vy = vyMetersPerSec;
+      omega = omegaRadPerSec;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** Removes every pose, used when the pose is reset. Main loop only. */
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      tail = head;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Writes the pose at a timestamp into an array of {x, y, theta}. Safe to call from any thread.
+   *
+   * @return False if no poses have been recorded, in which case the array is left unchanged.
+   */
+  public boolean getPoseAt(double timestamp, double[] pose) {
+    while (true) {
+      long stamp = lock.tryOptimisticRead();
+      double x = 0.0;
+      double y = 0.0;
+      double theta = 0.0;
+      long size = Math.min(head - tail, mask + 1);
+      if (size > 0) {
+        long newest = head - 1;
+        long oldest = head - size;
+        int newestIndex = (int) (newest & mask);
+        if (timestamp >= timestamps[newestIndex]) {
+          // Project forward from the newest pose
+          double dt = Math.min(timestamp - timestamps[newestIndex], maxExtrapolationSecs);
+          x = xs[newestIndex] + vx * dt;
+          y = ys[newestIndex] + vy * dt;
+          theta = MathUtil.angleModulus(thetas[newestIndex] + omega * dt);
+        } else if (timestamp <= timestamps[(int) (oldest & mask)]) {
+          int oldestIndex = (int) (oldest & mask);
+          x = xs[oldestIndex];
+          y = ys[oldestIndex];
+          theta = thetas[oldestIndex];
+        } else {
+          // Find the first pose after the timestamp, the one before it is at or before
+          long low = oldest;
+          long high = newest;
+          while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestamps[(int) (mid & mask)] <= timestamp) {
+              low = mid + 1;
+            } else {
+              high = mid;
+            }
+          }
+          int upper = (int) (low & mask);
+          int lower = (int) ((low - 1) & mask);
+          double t = (timestamp - timestamps[lower]) / (timestamps[upper] - timestamps[lower]);
+          x = MathUtil.interpolate(xs[lower], xs[upper], t);
+          y = MathUtil.interpolate(ys[lower], ys[upper], t);
+          theta =
+              MathUtil.angleModulus(
+                  thetas[lower] + MathUtil.angleModulus(thetas[upper] - thetas[lower]) * t);
+        }
+      }
+
+      if (lock.validate(stamp)) {
+        if (size == 0) {
+          return false;
+        }
+        pose[0] = x;
+        pose[1] = y;
+        pose[2] = theta;
+        return true;
+      }
+      Thread.onSpinWait();
+    }
+  }
+}
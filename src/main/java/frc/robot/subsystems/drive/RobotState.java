@@ -0,0 +1,139 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+
+/**
+ * Immutable snapshot of the drive state, published by {@link Drive} once per cycle.
+ *
+ * <p>Every value in a snapshot comes from the same cycle, so other threads can read a consistent
+ * state without locking by holding on to one snapshot. Getters that return mutable WPILib types
+ * build a new object on each call.
+ */
+public final class RobotState {
+  /** State published before the first cycle, with every value zeroed and a version of zero. */
+  public static final RobotState empty =
+      new RobotState(0, 0.0, new Pose2d(), 0.0, 0.0, 0.0, 0.0, 0.0, new double[4], new double[4]);
+
+  private final long version;
+  private final double timestamp;
+  private final Pose2d pose;
+  private final double fieldVx;
+  private final double fieldVy;
+  private final double robotVx;
+  private final double robotVy;
+  private final double omega;
+  private final double[] moduleSpeeds;
+  private final double[] moduleAngles;
+
+  /**
+   * Creates a snapshot. The module arrays are copied.
+   *
+   * @param version One more than the version of the previous snapshot.
+   * @param timestamp Time the snapshot was taken in seconds.
+   * @param pose Estimated pose.
+   * @param fieldVx Field-relative X velocity in meters per second.
+   * @param fieldVy Field-relative Y velocity in meters per second.
+   * @param robotVx Robot-relative X velocity in meters per second.
+   * @param robotVy Robot-relative Y velocity in meters per second.
+   * @param omega Angular velocity in radians per second.
+   * @param moduleSpeeds Measured drive speed of each module in meters per second.
+   * @param moduleAngles Measured turn angle of each module in radians.
+   */
+  public RobotState(
+      long version,
+      double timestamp,
+      Pose2d pose,
+      double fieldVx,
+      double fieldVy,
+      double robotVx,
+      double robotVy,
+      double omega,
+      double[] moduleSpeeds,
+      double[] moduleAngles) {
+    this.version = version;
+    this.timestamp = timestamp;
+    this.pose = pose;
+    this.fieldVx = fieldVx;
+    this.fieldVy = fieldVy;
+    this.robotVx = robotVx;
+    this.robotVy = robotVy;
+    this.omega = omega;
+    this.moduleSpeeds = moduleSpeeds.clone();
+    this.moduleAngles = moduleAngles.clone();
+  }
+
+  /** Returns the version, which increases by one with each published snapshot. */
+  public long getVersion() {
+    return version;
+  }
+
+  /** Returns the time the snapshot was taken in seconds. */
+  public double getTimestamp() {
+    return timestamp;
+  }
+
+  /** Returns the estimated pose. */
+  public Pose2d getPose() {
+    return pose;
+  }
+
+  /** Returns the field-relative velocity. */
+  public ChassisSpeeds getFieldVelocity() {
+    return new ChassisSpeeds(fieldVx, fieldVy, omega);
+  }
+
+  /** Returns the robot-relative velocity. */
+  public ChassisSpeeds getRobotVelocity() {
+    return new ChassisSpeeds(robotVx, robotVy, omega);
+  }
+
+  /** Returns the field-relative X velocity in meters per second. */
+  public double getFieldVx() {
+    return fieldVx;
+  }
+
+  /** Returns the field-relative Y velocity in meters per second. */
+  public double getFieldVy() {
+    return fieldVy;
+  }
+
+  /** Returns the angular velocity in radians per second. */
+  public double getOmega() {
+    return omega;
+  }
+
+  /** Returns the number of modules in the snapshot. */
+  public int getModuleCount() {
+    return moduleSpeeds.length;
+  }
+
+  /** Returns the measured state of a module. */
+  public SwerveModuleState getModuleState(int index) {
+    return new SwerveModuleState(moduleSpeeds[index], new Rotation2d(moduleAngles[index]));
+  }
+
+  /** Returns the measured states of every module. */
+  public SwerveModuleState[] getModuleStates() {
+    SwerveModuleState[] states = new SwerveModuleState[moduleSpeeds.length];
+    for (int i = 0; i < states.length; i++) {
+      states[i] = getModuleState(i);
+    }
+    return states;
+  }
+}
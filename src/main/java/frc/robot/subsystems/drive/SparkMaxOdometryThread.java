@@ -14,25 +14,36 @@
 package frc.robot.subsystems.drive;
 
 import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.Threads;
 import frc.robot.Constants.DriveConstants;
+import frc.util.TimingHistogram;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.OptionalDouble;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 import org.littletonrobotics.junction.Logger;
 
 /**
- * Provides an interface for asynchronously reading high-frequency measurements to a set of queues.
+ * Provides an interface for asynchronously reading high-frequency measurements to a set of buffers.
  *
  * <p>This version is intended for devices like the SparkMax that require polling rather than a
  * blocking thread. A Notifier thread is used to gather samples with consistent timing.
  */
 public class SparkMaxOdometryThread {
+  private final Lock signalsLock =
+      new ReentrantLock(); // Prevents conflicts when registering signals
+  private final OdometrySequence sequence = new OdometrySequence();
   private List<Supplier<OptionalDouble>> signals = new ArrayList<>();
-  private List<Queue<Double>> queues = new ArrayList<>();
-  private List<Queue<Double>> timestampQueues = new ArrayList<>();
+  private List<OdometrySampleBuffer> queues = new ArrayList<>();
+  private List<OdometrySampleBuffer> timestampQueues = new ArrayList<>();
+  private double[] values = new double[0];
+  private volatile long droppedSamples = 0;
+  private final TimingHistogram intervalHistogram = new TimingHistogram(0.0005, 24);
+  private final TimingHistogram latencyHistogram = new TimingHistogram(0.0005, 24);
+  private double lastSampleTimestamp = 0.0;
+  private boolean priorityConfigured = false;
 
   private final Notifier notifier;
   private static SparkMaxOdometryThread instance = null;
@@ -51,58 +62,109 @@ public class SparkMaxOdometryThread {
 
   public void start() {
     if (timestampQueues.size() > 0) {
+      // The callback thread sets its own priority on its first run
       notifier.startPeriodic(1.0 / DriveConstants.odometeryFrequency);
     }
   }
 
-  public Queue<Double> registerSignal(Supplier<OptionalDouble> signal) {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  public OdometrySampleBuffer registerSignal(String name, Supplier<OptionalDouble> signal) {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
     try {
+      queue = new OdometrySampleBuffer(sequence, name);
       signals.add(signal);
       queues.add(queue);
+      values = new double[signals.size()];
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
     return queue;
   }
 
-  public Queue<Double> makeTimestampQueue() {
-    Queue<Double> queue = new ArrayBlockingQueue<>(20);
-    Drive.odometryLock.lock();
+  public OdometrySampleBuffer makeTimestampQueue() {
+    OdometrySampleBuffer queue;
+    signalsLock.lock();
     try {
+      queue = new OdometrySampleBuffer(sequence, "Timestamp");
       timestampQueues.add(queue);
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
     return queue;
   }
 
+  /** Captures the samples published so far for the main loop to drain this cycle. */
+  public void latchSamples() {
+    sequence.latch();
+  }
+
+  /** Returns the number of cycles where the main loop latched while a sample was being written. */
+  public long getContentionCount() {
+    return sequence.getContentionCount();
+  }
+
   private void periodic() {
-    Drive.odometryLock.lock();
+    if (!priorityConfigured) {
+      Threads.setCurrentThreadPriority(
+          DriveConstants.odometryThreadRealTime, DriveConstants.odometryThreadPriority);
+      priorityConfigured = true;
+    }
+
+    // The main loop never takes this lock, it only drains samples that have been published to the
+    // sequence
+    signalsLock.lock();
     double timestamp = Logger.getRealTimestamp() / 1e6;
+    if (lastSampleTimestamp > 0.0) {
+      intervalHistogram.record(timestamp - lastSampleTimestamp);
+    }
+    lastSampleTimestamp = timestamp;
     try {
-      double[] values = new double[signals.size()];
       boolean isValid = true;
       for (int i = 0; i < signals.size(); i++) {
         OptionalDouble value = signals.get(i).get();
         if (value.isPresent()) {
           values[i] = value.getAsDouble();
         } else {
+          queues.get(i).markInvalid();
           isValid = false;
-          break;
         }
       }
-      if (isValid) {
+      if (!isValid
+          || !OdometrySampleBuffer.hasCapacity(queues)
+          || !OdometrySampleBuffer.hasCapacity(timestampQueues)) {
+        // Only write whole samples so every buffer stays aligned with the timestamps
+        OdometrySampleBuffer.markDropped(queues);
+        if (isValid) {
+          droppedSamples++;
+        }
+      } else {
+        sequence.beginWrite();
         for (int i = 0; i < queues.size(); i++) {
           queues.get(i).offer(values[i]);
         }
         for (int i = 0; i < timestampQueues.size(); i++) {
           timestampQueues.get(i).offer(timestamp);
         }
+        sequence.endWrite();
+        latencyHistogram.record(Logger.getRealTimestamp() / 1e6 - timestamp);
       }
     } finally {
-      Drive.odometryLock.unlock();
+      signalsLock.unlock();
     }
   }
+
+  /** Returns the histogram of time between samples. */
+  public TimingHistogram getIntervalHistogram() {
+    return intervalHistogram;
+  }
+
+  /** Returns the histogram of time spent reading and publishing each sample. */
+  public TimingHistogram getLatencyHistogram() {
+    return latencyHistogram;
+  }
+
+  /** Returns the number of samples discarded because the main loop did not drain the buffers. */
+  public long getDroppedSamples() {
+    return droppedSamples;
+  }
 }
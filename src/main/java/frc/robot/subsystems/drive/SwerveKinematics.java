@@ -0,0 +1,223 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+
+/**
+ * Closed-form replacement for WPILib's SwerveDriveKinematics, for module layouts centered on the
+ * robot such as the one returned by {@link Drive#getModuleTranslations()}.
+ *
+ * <p>WPILib solves forward kinematics with a pseudo-inverse of the inverse kinematics matrix, which
+ * allocates EJML matrices on every call. When the module positions sum to zero that least-squares
+ * solution reduces to the mean of the module velocities for translation and a weighted sum for
+ * rotation, so the primitive methods here give the same results without any matrix math or
+ * allocation. Rotation about a point other than the robot center is not supported.
+ */
+public class SwerveKinematics {
+  private final int moduleCount;
+  private final double[] moduleX;
+  private final double[] moduleY;
+  private final double moduleRadiusSquaredSum;
+
+  // Headings kept while stopped, the same as WPILib
+  private final double[] moduleHeadings;
+
+  /**
+   * Creates a new kinematics object.
+   *
+   * @param moduleTranslations Module positions relative to the robot center.
+   * @throws IllegalArgumentException If the modules are not centered on the robot.
+   */
+  public SwerveKinematics(Translation2d... moduleTranslations) {
+    moduleCount = moduleTranslations.length;
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    moduleHeadings = new double[moduleCount];
+    double xSum = 0.0;
+    double ySum = 0.0;
+    double radiusSquaredSum = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+      xSum += moduleX[i];
+      ySum += moduleY[i];
+      radiusSquaredSum += moduleX[i] * moduleX[i] + moduleY[i] * moduleY[i];
+    }
+    if (moduleCount < 2 || Math.abs(xSum) > 1e-9 || Math.abs(ySum) > 1e-9) {
+      throw new IllegalArgumentException("Module translations must be centered on the robot");
+    }
+    moduleRadiusSquaredSum = radiusSquaredSum;
+  }
+
+  /** Returns the number of modules. */
+  public int getModuleCount() {
+    return moduleCount;
+  }
+
+  /**
+   * Writes the module speeds and angles for robot-relative chassis speeds. When the chassis is
+   * stopped every module keeps its last heading with a speed of zero.
+   *
+   * @param vx Forward velocity in meters per second.
+   * @param vy Leftward velocity in meters per second.
+   * @param omega Counterclockwise angular velocity in radians per second.
+   * @param speeds Module speeds in meters per second, written for every module.
+   * @param angles Module angles in radians, written for every module.
+   */
+  public void toModuleStates(double vx, double vy, double omega, double[] speeds, double[] angles) {
+    boolean stopped = vx == 0.0 && vy == 0.0 && omega == 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      if (stopped) {
+        speeds[i] = 0.0;
+      } else {
+        double moduleVx = vx - omega * moduleY[i];
+        double moduleVy = vy + omega * moduleX[i];
+        speeds[i] = Math.hypot(moduleVx, moduleVy);
+        moduleHeadings[i] = Math.atan2(moduleVy, moduleVx);
+      }
+      angles[i] = moduleHeadings[i];
+    }
+  }
+
+  /**
+   * Writes the robot-relative chassis speeds that best fit the module states into an array of {vx,
+   * vy, omega}.
+   *
+   * @param speeds Module speeds in meters per second.
+   * @param angles Module angles in radians.
+   * @param chassisSpeeds Destination for the chassis speeds.
+   */
+  public void toChassisSpeeds(double[] speeds, double[] angles, double[] chassisSpeeds) {
+    fit(speeds, angles, chassisSpeeds);
+  }
+
+  /**
+   * Writes the robot-relative twist that best fits the module distance deltas into an array of
+   * {dx, dy, dtheta}.
+   *
+   * @param distanceDeltas Distance each module drove in meters.
+   * @param angles Module angles in radians.
+   * @param twist Destination for the twist.
+   */
+  public void toTwist2d(double[] distanceDeltas, double[] angles, double[] twist) {
+    fit(distanceDeltas, angles, twist);
+  }
+
+  /** Returns module states for robot-relative chassis speeds. Allocates the returned states. */
+  public SwerveModuleState[] toSwerveModuleStates(ChassisSpeeds chassisSpeeds) {
+    SwerveModuleState[] states = new SwerveModuleState[moduleCount];
+    boolean stopped =
+        chassisSpeeds.vxMetersPerSecond == 0.0
+            && chassisSpeeds.vyMetersPerSecond == 0.0
+            && chassisSpeeds.omegaRadiansPerSecond == 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      if (stopped) {
+        states[i] = new SwerveModuleState(0.0, new Rotation2d(moduleHeadings[i]));
+        continue;
+      }
+      double moduleVx =
+          chassisSpeeds.vxMetersPerSecond - chassisSpeeds.omegaRadiansPerSecond * moduleY[i];
+      double moduleVy =
+          chassisSpeeds.vyMetersPerSecond + chassisSpeeds.omegaRadiansPerSecond * moduleX[i];
+      Rotation2d angle = new Rotation2d(Math.atan2(moduleVy, moduleVx));
+      moduleHeadings[i] = angle.getRadians();
+      states[i] = new SwerveModuleState(Math.hypot(moduleVx, moduleVy), angle);
+    }
+    return states;
+  }
+
+  /** Returns the robot-relative chassis speeds that best fit the module states. */
+  public ChassisSpeeds toChassisSpeeds(SwerveModuleState... states) {
+    double vx = 0.0;
+    double vy = 0.0;
+    double rotationSum = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      double moduleVx = states[i].speedMetersPerSecond * states[i].angle.getCos();
+      double moduleVy = states[i].speedMetersPerSecond * states[i].angle.getSin();
+      vx += moduleVx;
+      vy += moduleVy;
+      rotationSum += moduleX[i] * moduleVy - moduleY[i] * moduleVx;
+    }
+    return new ChassisSpeeds(
+        vx / moduleCount, vy / moduleCount, rotationSum / moduleRadiusSquaredSum);
+  }
+
+  /**
+   * Writes chassis speeds corrected for the robot rotating during the period into an array of {vx,
+   * vy, omega}, the same as ChassisSpeeds.discretize.
+   *
+   * @param vx Robot-relative X velocity in meters per second.
+   * @param vy Robot-relative Y velocity in meters per second.
+   * @param omega Angular velocity in radians per second.
+   * @param dt Period the speeds will be applied for in seconds.
+   * @param chassisSpeeds Destination for the discretized speeds.
+   */
+  public static void discretize(
+      double vx, double vy, double omega, double dt, double[] chassisSpeeds) {
+    // Twist that reaches the pose the speeds would reach if applied separately (Pose2d.log)
+    double halfDtheta = omega * dt / 2.0;
+    double cosMinusOne = Math.cos(omega * dt) - 1.0;
+    double halfThetaByTanOfHalfDtheta;
+    if (Math.abs(cosMinusOne) < 1e-9) {
+      halfThetaByTanOfHalfDtheta = 1.0 - 4.0 * halfDtheta * halfDtheta / 12.0;
+    } else {
+      halfThetaByTanOfHalfDtheta = -(halfDtheta * Math.sin(omega * dt)) / cosMinusOne;
+    }
+    chassisSpeeds[0] = vx * halfThetaByTanOfHalfDtheta + vy * halfDtheta;
+    chassisSpeeds[1] = vy * halfThetaByTanOfHalfDtheta - vx * halfDtheta;
+    chassisSpeeds[2] = omega;
+  }
+
+  /**
+   * Scales module speeds down so that none exceeds the maximum, keeping their ratios.
+   *
+   * @param speeds Module speeds in meters per second, modified in place.
+   * @param maxSpeed Maximum module speed in meters per second.
+   */
+  public static void desaturateWheelSpeeds(double[] speeds, double maxSpeed) {
+    double realMaxSpeed = 0.0;
+    for (double speed : speeds) {
+      realMaxSpeed = Math.max(realMaxSpeed, Math.abs(speed));
+    }
+    if (realMaxSpeed > maxSpeed) {
+      for (int i = 0; i < speeds.length; i++) {
+        speeds[i] = speeds[i] / realMaxSpeed * maxSpeed;
+      }
+    }
+  }
+
+  /**
+   * Least-squares fit of a rigid-body motion to per-module magnitudes along the module angles. The
+   * modules are centered on the robot, so the normal equations are diagonal.
+   */
+  private void fit(double[] magnitudes, double[] angles, double[] result) {
+    double x = 0.0;
+    double y = 0.0;
+    double rotationSum = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      double componentX = magnitudes[i] * Math.cos(angles[i]);
+      double componentY = magnitudes[i] * Math.sin(angles[i]);
+      x += componentX;
+      y += componentY;
+      rotationSum += moduleX[i] * componentY - moduleY[i] * componentX;
+    }
+    result[0] = x / moduleCount;
+    result[1] = y / moduleCount;
+    result[2] = rotationSum / moduleRadiusSquaredSum;
+  }
+}
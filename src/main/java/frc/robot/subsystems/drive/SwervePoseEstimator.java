@@ -0,0 +1,592 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.Matrix;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.numbers.N1;
+import edu.wpi.first.math.numbers.N3;
+
+/**
+ * Replacement for WPILib's SwerveDrivePoseEstimator that keeps its state and history in primitive
+ * arrays.
+ *
+ * <p>The algorithm is the same as WPILib's: odometry integrates module deltas with the gyro angle,
+ * every update is recorded in a history covering the last {@link #historySecs}, and a vision
+ * measurement is blended into the interpolated record at its timestamp before the newer records
+ * are replayed on top of it. The history is a sorted ring buffer found by binary search instead of
+ * a TreeMap of boxed records, so a vision measurement costs O(log n) plus the replayed samples, and
+ * odometry updates never allocate.
+ *
+ * <p>Module deltas are turned into twists by {@link SwerveKinematics}, whose closed form matches
+ * the least-squares solution WPILib computes for the layouts it supports.
+ */
+public class SwervePoseEstimator {
+  /** Vision measurements older than this relative to the latest odometry update are ignored. */
+  public static final double historySecs = 1.5;
+
+  private static final int defaultCapacity = 1024;
+
+  private final SwerveKinematics kinematics;
+  private final int moduleCount;
+
+  // Odometry state, the same as WPILib's Odometry class
+  private double poseX = 0.0;
+  private double poseY = 0.0;
+  private double poseTheta = 0.0;
+  private double previousAngle = 0.0;
+  private double gyroOffset = 0.0;
+  private final double[] previousDistances;
+  private final double[] previousAngles;
+
+  // Kalman gains, zero for any axis with no state uncertainty
+  private final double[] stateVariance = new double[3];
+  private final double[] visionK = new double[3];
+
+  // History of odometry records sorted by timestamp. Logical index i lives at (start + i) & mask.
+  private final int mask;
+  private final double[] historyTimestamps;
+  private final double[] historyX;
+  private final double[] historyY;
+  private final double[] historyTheta;
+  private final double[] historyGyro;
+  private final double[] historyDistances; // moduleCount entries per record
+  private final double[] historyAngles; // moduleCount entries per record
+  private int start = 0;
+  private int size = 0;
+
+  // Scratch for the interpolated record used by vision measurements
+  private final double[] sampleDistances;
+  private final double[] sampleAngles;
+  private double sampleX;
+  private double sampleY;
+  private double sampleTheta;
+  private double sampleGyro;
+
+  // Scratch for twists, {dx, dy, dtheta}, and the module deltas they're fit to
+  private final double[] twist = new double[3];
+  private final double[] twistDeltas;
+  private final double[] twistAngles;
+
+  private Pose2d estimatedPose = null; // Built on request, null when out of date
+
+  /**
+   * Creates a new estimator with the same default standard deviations as WPILib: 0.1 meters and
+   * 0.1 radians for the state and 0.9 meters and 0.9 radians for vision.
+   *
+   * @param kinematics Kinematics of the drive.
+   * @param gyroAngle Current gyro angle.
+   * @param modulePositions Current module positions.
+   * @param initialPose Starting pose.
+   */
+  public SwervePoseEstimator(
+      SwerveKinematics kinematics,
+      Rotation2d gyroAngle,
+      SwerveModulePosition[] modulePositions,
+      Pose2d initialPose) {
+    this(kinematics, gyroAngle, modulePositions, initialPose, defaultCapacity);
+  }
+
+  /**
+   * Creates a new estimator.
+   *
+   * @param kinematics Kinematics of the drive.
+   * @param gyroAngle Current gyro angle.
+   * @param modulePositions Current module positions.
+   * @param initialPose Starting pose.
+   * @param capacity Number of history records, rounded up to a power of two. Should cover {@link
+   *     #historySecs} at the highest odometry rate plus any vision measurements in that time.
+   */
+  public SwervePoseEstimator(
+      SwerveKinematics kinematics,
+      Rotation2d gyroAngle,
+      SwerveModulePosition[] modulePositions,
+      Pose2d initialPose,
+      int capacity) {
+    this.kinematics = kinematics;
+    moduleCount = kinematics.getModuleCount();
+    twistDeltas = new double[moduleCount];
+    twistAngles = new double[moduleCount];
+    previousDistances = new double[moduleCount];
+    previousAngles = new double[moduleCount];
+    sampleDistances = new double[moduleCount];
+    sampleAngles = new double[moduleCount];
+
+    int roundedCapacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = roundedCapacity - 1;
+    historyTimestamps = new double[roundedCapacity];
+    historyX = new double[roundedCapacity];
+    historyY = new double[roundedCapacity];
+    historyTheta = new double[roundedCapacity];
+    historyGyro = new double[roundedCapacity];
+    historyDistances = new double[roundedCapacity * moduleCount];
+    historyAngles = new double[roundedCapacity * moduleCount];
+
+    setStateStdDevs(0.1, 0.1, 0.1);
+    setVisionMeasurementStdDevs(0.9, 0.9, 0.9);
+    resetPosition(gyroAngle, modulePositions, initialPose);
+  }
+
+  /** Sets the standard deviations of the odometry state, must be followed by the vision ones. */
+  private void setStateStdDevs(double xStdDev, double yStdDev, double thetaStdDev) {
+    stateVariance[0] = xStdDev * xStdDev;
+    stateVariance[1] = yStdDev * yStdDev;
+    stateVariance[2] = thetaStdDev * thetaStdDev;
+  }
+
+  /** Sets the default standard deviations of vision measurements in meters and radians. */
+  public void setVisionMeasurementStdDevs(double xStdDev, double yStdDev, double thetaStdDev) {
+    visionK[0] = calculateK(0, xStdDev);
+    visionK[1] = calculateK(1, yStdDev);
+    visionK[2] = calculateK(2, thetaStdDev);
+  }
+
+  /** Sets the default standard deviations of vision measurements in meters and radians. */
+  public void setVisionMeasurementStdDevs(Matrix<N3, N1> visionMeasurementStdDevs) {
+    setVisionMeasurementStdDevs(
+        visionMeasurementStdDevs.get(0, 0),
+        visionMeasurementStdDevs.get(1, 0),
+        visionMeasurementStdDevs.get(2, 0));
+  }
+
+  /** Returns the Kalman gain of one axis, the closed form of WPILib's for a diagonal model. */
+  private double calculateK(int axis, double stdDev) {
+    double q = stateVariance[axis];
+    if (q == 0.0) {
+      return 0.0;
+    }
+    return q / (q + Math.sqrt(q * stdDev * stdDev));
+  }
+
+  /**
+   * Resets the pose and clears the history.
+   *
+   * @param gyroAngle Current gyro angle.
+   * @param modulePositions Current module positions.
+   * @param pose New pose.
+   */
+  public void resetPosition(
+      Rotation2d gyroAngle, SwerveModulePosition[] modulePositions, Pose2d pose) {
+    for (int i = 0; i < moduleCount; i++) {
+      sampleDistances[i] = modulePositions[i].distanceMeters;
+      sampleAngles[i] = modulePositions[i].angle.getRadians();
+    }
+    resetOdometry(
+        gyroAngle.getRadians(),
+        sampleDistances,
+        sampleAngles,
+        pose.getX(),
+        pose.getY(),
+        pose.getRotation().getRadians());
+    start = 0;
+    size = 0;
+  }
+
+  /**
+   * Integrates a set of module positions.
+   *
+   * @param timestamp Time of the sample in seconds.
+   * @param gyroAngle Gyro angle at the time of the sample.
+   * @param modulePositions Module positions at the time of the sample.
+   */
+  public void updateWithTime(
+      double timestamp, Rotation2d gyroAngle, SwerveModulePosition[] modulePositions) {
+    for (int i = 0; i < moduleCount; i++) {
+      sampleDistances[i] = modulePositions[i].distanceMeters;
+      sampleAngles[i] = modulePositions[i].angle.getRadians();
+    }
+    updateWithTime(timestamp, gyroAngle.getRadians(), sampleDistances, sampleAngles);
+  }
+
+  /**
+   * Integrates a set of module positions without building any geometry objects.
+   *
+   * @param timestamp Time of the sample in seconds.
+   * @param gyroRad Gyro angle at the time of the sample in radians.
+   * @param distancesMeters Drive position of each module in meters.
+   * @param anglesRad Turn angle of each module in radians.
+   */
+  public void updateWithTime(
+      double timestamp, double gyroRad, double[] distancesMeters, double[] anglesRad) {
+    updateOdometry(gyroRad, distancesMeters, anglesRad);
+    int index = insert(timestamp);
+    writeRecord(index, gyroRad, distancesMeters, anglesRad);
+  }
+
+  /** Adds a vision measurement using the default standard deviations. */
+  public void addVisionMeasurement(Pose2d visionPose, double timestamp) {
+    applyVisionMeasurement(
+        timestamp,
+        visionPose.getX(),
+        visionPose.getY(),
+        visionPose.getRotation().getRadians(),
+        visionK[0],
+        visionK[1],
+        visionK[2]);
+  }
+
+  /** Adds a vision measurement with standard deviations in meters and radians. */
+  public void addVisionMeasurement(
+      Pose2d visionPose, double timestamp, Matrix<N3, N1> visionMeasurementStdDevs) {
+    addVisionMeasurement(
+        visionPose.getX(),
+        visionPose.getY(),
+        visionPose.getRotation().getRadians(),
+        timestamp,
+        visionMeasurementStdDevs.get(0, 0),
+        visionMeasurementStdDevs.get(1, 0),
+        visionMeasurementStdDevs.get(2, 0));
+  }
+
+  /**
+   * Adds a vision measurement without building any geometry objects.
+   *
+   * @param x Measured X position in meters.
+   * @param y Measured Y position in meters.
+   * @param thetaRad Measured rotation in radians.
+   * @param timestamp Time the measurement was captured in seconds.
+   * @param xStdDev Standard deviation of the X position in meters.
+   * @param yStdDev Standard deviation of the Y position in meters.
+   * @param thetaStdDev Standard deviation of the rotation in radians.
+   */
+  public void addVisionMeasurement(
+      double x,
+      double y,
+      double thetaRad,
+      double timestamp,
+      double xStdDev,
+      double yStdDev,
+      double thetaStdDev) {
+    applyVisionMeasurement(
+        timestamp,
+        x,
+        y,
+        thetaRad,
+        calculateK(0, xStdDev),
+        calculateK(1, yStdDev),
+        calculateK(2, thetaStdDev));
+  }
+
+  private void applyVisionMeasurement(
+      double timestamp, double x, double y, double thetaRad, double kX, double kY, double kTheta) {
+    // Skip measurements older than the history
+    if (size == 0 || getTimestamp(size - 1) - historySecs > timestamp) {
+      return;
+    }
+
+    // Blend the measurement into the odometry pose at its timestamp
+    sample(timestamp);
+    log(sampleX, sampleY, sampleTheta, x, y, thetaRad);
+    twist[0] *= kX;
+    twist[1] *= kY;
+    twist[2] *= kTheta;
+    exp(sampleX, sampleY, sampleTheta);
+    resetOdometry(sampleGyro, sampleDistances, sampleAngles, poseX, poseY, poseTheta);
+
+    // Record the corrected pose, then replay the newer records on top of it
+    int index = insert(timestamp);
+    writeRecord(index, sampleGyro, sampleDistances, sampleAngles);
+    for (int i = index + 1; i < size; i++) {
+      int slot = (start + i) & mask;
+      updateOdometry(historyGyro[slot], historyDistances, historyAngles, slot * moduleCount);
+      historyX[slot] = poseX;
+      historyY[slot] = poseY;
+      historyTheta[slot] = poseTheta;
+    }
+  }
+
+  /** Returns the estimated pose. The same object is returned until the estimate changes. */
+  public Pose2d getEstimatedPosition() {
+    if (estimatedPose == null) {
+      estimatedPose = new Pose2d(poseX, poseY, new Rotation2d(poseTheta));
+    }
+    return estimatedPose;
+  }
+
+  /**
+   * Writes the pose recorded in the history at a timestamp into an array of {x, y, theta},
+   * interpolating between records and clamping to the oldest and newest ones.
+   *
+   * @return False if there is no history, in which case the array is left unchanged.
+   */
+  public boolean getPoseAt(double timestamp, double[] pose) {
+    if (size == 0) {
+      return false;
+    }
+    sample(timestamp);
+    pose[0] = sampleX;
+    pose[1] = sampleY;
+    pose[2] = sampleTheta;
+    return true;
+  }
+
+  /** Returns the variance of the odometry state, 0 for X, 1 for Y and 2 for rotation. */
+  public double getStateVariance(int axis) {
+    return stateVariance[axis];
+  }
+
+  /** Returns the estimated X position in meters. */
+  public double getX() {
+    return poseX;
+  }
+
+  /** Returns the estimated Y position in meters. */
+  public double getY() {
+    return poseY;
+  }
+
+  /** Returns the estimated rotation in radians. */
+  public double getRotationRad() {
+    return poseTheta;
+  }
+
+  private void resetOdometry(
+      double gyroRad, double[] distances, double[] angles, double x, double y, double thetaRad) {
+    poseX = x;
+    poseY = y;
+    poseTheta = thetaRad;
+    previousAngle = thetaRad;
+    gyroOffset = thetaRad - gyroRad;
+    System.arraycopy(distances, 0, previousDistances, 0, moduleCount);
+    System.arraycopy(angles, 0, previousAngles, 0, moduleCount);
+    estimatedPose = null;
+  }
+
+  private void updateOdometry(double gyroRad, double[] distances, double[] angles) {
+    updateOdometry(gyroRad, distances, angles, 0);
+  }
+
+  /** Integrates module positions read from the arrays starting at the offset. */
+  private void updateOdometry(double gyroRad, double[] distances, double[] angles, int offset) {
+    double angle = MathUtil.angleModulus(gyroRad + gyroOffset);
+    moduleTwist(previousDistances, 0, distances, angles, offset);
+    twist[2] = MathUtil.angleModulus(angle - previousAngle);
+    exp(poseX, poseY, poseTheta);
+    poseTheta = angle;
+    previousAngle = angle;
+    System.arraycopy(distances, offset, previousDistances, 0, moduleCount);
+    System.arraycopy(angles, offset, previousAngles, 0, moduleCount);
+    estimatedPose = null;
+  }
+
+  /**
+   * Writes the chassis twist between two sets of module distances into {@link #twist}, using the
+   * end angles for every module delta. Each array is read from its offset.
+   */
+  private void moduleTwist(
+      double[] startDistances,
+      int startOffset,
+      double[] endDistances,
+      double[] endAngles,
+      int endOffset) {
+    for (int i = 0; i < moduleCount; i++) {
+      twistDeltas[i] = endDistances[endOffset + i] - startDistances[startOffset + i];
+      twistAngles[i] = endAngles[endOffset + i];
+    }
+    kinematics.toTwist2d(twistDeltas, twistAngles, twist);
+  }
+
+  /** Applies {@link #twist} to a pose, the same as Pose2d.exp, writing the result to the pose. */
+  private void exp(double x, double y, double theta) {
+    double dx = twist[0];
+    double dy = twist[1];
+    double dtheta = twist[2];
+    double sinTheta = Math.sin(dtheta);
+    double cosTheta = Math.cos(dtheta);
+
+    double s;
+    double c;
+    if (Math.abs(dtheta) < 1e-9) {
+      s = 1.0 - 1.0 / 6.0 * dtheta * dtheta;
+      c = 0.5 * dtheta;
+    } else {
+      s = sinTheta / dtheta;
+      c = (1 - cosTheta) / dtheta;
+    }
+    double localX = dx * s - dy * c;
+    double localY = dx * c + dy * s;
+
+    double cos = Math.cos(theta);
+    double sin = Math.sin(theta);
+    poseX = x + localX * cos - localY * sin;
+    poseY = y + localX * sin + localY * cos;
+    poseTheta = MathUtil.angleModulus(theta + dtheta);
+  }
+
+  /** Writes the twist from one pose to another into {@link #twist}, the same as Pose2d.log. */
+  private void log(
+      double startX, double startY, double startTheta, double endX, double endY, double endTheta) {
+    // End pose relative to the start pose
+    double cos = Math.cos(startTheta);
+    double sin = Math.sin(startTheta);
+    double relativeX = (endX - startX) * cos + (endY - startY) * sin;
+    double relativeY = -(endX - startX) * sin + (endY - startY) * cos;
+    double dtheta = MathUtil.angleModulus(endTheta - startTheta);
+
+    double halfDtheta = dtheta / 2.0;
+    double cosMinusOne = Math.cos(dtheta) - 1;
+    double halfThetaByTanOfHalfDtheta;
+    if (Math.abs(cosMinusOne) < 1e-9) {
+      halfThetaByTanOfHalfDtheta = 1.0 - 1.0 / 12.0 * dtheta * dtheta;
+    } else {
+      halfThetaByTanOfHalfDtheta = -(halfDtheta * Math.sin(dtheta)) / cosMinusOne;
+    }
+
+    twist[0] = relativeX * halfThetaByTanOfHalfDtheta + relativeY * halfDtheta;
+    twist[1] = relativeY * halfThetaByTanOfHalfDtheta - relativeX * halfDtheta;
+    twist[2] = dtheta;
+  }
+
+  /**
+   * Interpolates the history at a timestamp into the sample fields, clamping to the oldest and
+   * newest records. Between records the pose is found by integrating the interpolated module
+   * positions from the older record, the same as WPILib's interpolation records.
+   */
+  private void sample(double timestamp) {
+    int upper = ceilingIndex(timestamp);
+    if (upper == size) {
+      copySample(size - 1);
+      return;
+    } else if (upper == 0 || getTimestamp(upper) == timestamp) {
+      copySample(upper);
+      return;
+    }
+
+    int lowerSlot = (start + upper - 1) & mask;
+    int upperSlot = (start + upper) & mask;
+    double t =
+        (timestamp - historyTimestamps[lowerSlot])
+            / (historyTimestamps[upperSlot] - historyTimestamps[lowerSlot]);
+    int lowerOffset = lowerSlot * moduleCount;
+    int upperOffset = upperSlot * moduleCount;
+    for (int i = 0; i < moduleCount; i++) {
+      sampleDistances[i] =
+          MathUtil.interpolate(
+              historyDistances[lowerOffset + i], historyDistances[upperOffset + i], t);
+      sampleAngles[i] =
+          interpolateAngle(historyAngles[lowerOffset + i], historyAngles[upperOffset + i], t);
+    }
+    sampleGyro = interpolateAngle(historyGyro[lowerSlot], historyGyro[upperSlot], t);
+
+    // Pose from the lower record, integrated with the interpolated module positions and gyro
+    moduleTwist(historyDistances, lowerOffset, sampleDistances, sampleAngles, 0);
+    twist[2] = MathUtil.angleModulus(sampleGyro - historyGyro[lowerSlot]);
+    double x = poseX;
+    double y = poseY;
+    double theta = poseTheta;
+    exp(historyX[lowerSlot], historyY[lowerSlot], historyTheta[lowerSlot]);
+    sampleX = poseX;
+    sampleY = poseY;
+    sampleTheta = poseTheta;
+    poseX = x;
+    poseY = y;
+    poseTheta = theta;
+  }
+
+  private void copySample(int index) {
+    int slot = (start + index) & mask;
+    sampleX = historyX[slot];
+    sampleY = historyY[slot];
+    sampleTheta = historyTheta[slot];
+    sampleGyro = historyGyro[slot];
+    System.arraycopy(historyDistances, slot * moduleCount, sampleDistances, 0, moduleCount);
+    System.arraycopy(historyAngles, slot * moduleCount, sampleAngles, 0, moduleCount);
+  }
+
+  /** Writes the current pose and the given gyro angle and module positions to a record. */
+  private void writeRecord(int index, double gyroRad, double[] distances, double[] angles) {
+    int slot = (start + index) & mask;
+    historyX[slot] = poseX;
+    historyY[slot] = poseY;
+    historyTheta[slot] = poseTheta;
+    historyGyro[slot] = gyroRad;
+    System.arraycopy(distances, 0, historyDistances, slot * moduleCount, moduleCount);
+    System.arraycopy(angles, 0, historyAngles, slot * moduleCount, moduleCount);
+  }
+
+  /**
+   * Makes room for a record at a timestamp and returns its index. An existing record with the same
+   * timestamp is reused, newer records are shifted up by one, and records older than {@link
+   * #historySecs} before the newest one are discarded, as is the oldest record when full.
+   */
+  private int insert(double timestamp) {
+    int index = ceilingIndex(timestamp);
+    if (index < size && getTimestamp(index) == timestamp) {
+      return index;
+    }
+
+    if (size == historyTimestamps.length) {
+      if (index == 0) {
+        // Older than everything in a full buffer, replace the oldest record
+        historyTimestamps[start] = timestamp;
+        return 0;
+      }
+      start = (start + 1) & mask;
+      size--;
+      index--;
+    }
+    for (int i = size; i > index; i--) {
+      copyRecord((start + i - 1) & mask, (start + i) & mask);
+    }
+    size++;
+    historyTimestamps[(start + index) & mask] = timestamp;
+
+    double newest = getTimestamp(size - 1);
+    while (index > 0 && newest - historyTimestamps[start] >= historySecs) {
+      start = (start + 1) & mask;
+      size--;
+      index--;
+    }
+    return index;
+  }
+
+  private void copyRecord(int fromSlot, int toSlot) {
+    historyTimestamps[toSlot] = historyTimestamps[fromSlot];
+    historyX[toSlot] = historyX[fromSlot];
+    historyY[toSlot] = historyY[fromSlot];
+    historyTheta[toSlot] = historyTheta[fromSlot];
+    historyGyro[toSlot] = historyGyro[fromSlot];
+    int from = fromSlot * moduleCount;
+    int to = toSlot * moduleCount;
+    System.arraycopy(historyDistances, from, historyDistances, to, moduleCount);
+    System.arraycopy(historyAngles, from, historyAngles, to, moduleCount);
+  }
+
+  /** Returns the index of the first record at or after the timestamp, or the size if none. */
+  private int ceilingIndex(double timestamp) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getTimestamp(mid) < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private double getTimestamp(int index) {
+    return historyTimestamps[(start + index) & mask];
+  }
+
+  /** Interpolates between two angles the short way around, the same as Rotation2d.interpolate. */
+  private static double interpolateAngle(double start, double end, double t) {
+    return MathUtil.angleModulus(start + MathUtil.angleModulus(end - start) * t);
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Translation2d;
+
+/**
+ * Turns requested chassis speeds into module setpoints the drive can actually follow.
+ *
+ * <p>Each cycle moves from the previous setpoint toward the request by the largest fraction that
+ * stays within the chassis linear and angular acceleration limits, the acceleration limit of every
+ * module, and the steering rate of every module that is moving. Because the whole chassis moves
+ * along one line between the two setpoints, the modules stay consistent with a rigid body; a module
+ * that has to reverse slows through zero instead of flipping. Modules starting from rest may steer
+ * at the limit while their speed follows the projection of their target onto the wheel direction.
+ *
+ * <p>All state is kept in primitive arrays, so generating a setpoint never allocates. Main loop
+ * only.
+ */
+public class SwerveSetpointGenerator {
+  private static final int bisectionIterations = 10;
+  private static final double stoppedSpeed = 1e-3; // Meters per second
+
+  private final int moduleCount;
+  private final double[] moduleX;
+  private final double[] moduleY;
+  private final double maxModuleSpeed;
+  private final double maxLinearAccel;
+  private final double maxAngularVelocity;
+  private final double maxAngularAccel;
+  private final double maxSteerVelocity;
+
+  // Previous setpoint, robot-relative
+  private double vx = 0.0;
+  private double vy = 0.0;
+  private double omega = 0.0;
+  private final double[] moduleSpeeds;
+  private final double[] moduleAngles;
+
+  /**
+   * Creates a new setpoint generator.
+   *
+   * @param moduleTranslations Module positions relative to the robot center.
+   * @param maxModuleSpeed Maximum module speed in meters per second.
+   * @param maxLinearAccel Maximum acceleration of the chassis and of each module in meters per
+   *     second squared.
+   * @param maxAngularVelocity Maximum chassis angular velocity in radians per second.
+   * @param maxAngularAccel Maximum chassis angular acceleration in radians per second squared.
+   * @param maxSteerVelocity Maximum module steering rate in radians per second.
+   */
+  public SwerveSetpointGenerator(
+      Translation2d[] moduleTranslations,
+      double maxModuleSpeed,
+      double maxLinearAccel,
+      double maxAngularVelocity,
+      double maxAngularAccel,
+      double maxSteerVelocity) {
+    moduleCount = moduleTranslations.length;
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+    }
+    this.maxModuleSpeed = maxModuleSpeed;
+    this.maxLinearAccel = maxLinearAccel;
+    this.maxAngularVelocity = maxAngularVelocity;
+    this.maxAngularAccel = maxAngularAccel;
+    this.maxSteerVelocity = maxSteerVelocity;
+    moduleSpeeds = new double[moduleCount];
+    moduleAngles = new double[moduleCount];
+  }
+
+  /**
+   * Starts from the measured state, e.g. when a command begins.
+   *
+   * @param vx Measured robot-relative X velocity in meters per second.
+   * @param vy Measured robot-relative Y velocity in meters per second.
+   * @param omega Measured angular velocity in radians per second.
+   * @param angles Measured module angles in radians.
+   */
+  public void reset(double vx, double vy, double omega, double[] angles) {
+    this.vx = vx;
+    this.vy = vy;
+    this.omega = omega;
+    for (int i = 0; i < moduleCount; i++) {
+      double moduleVx = vx - omega * moduleY[i];
+      double moduleVy = vy + omega * moduleX[i];
+      moduleAngles[i] = angles[i];
+      moduleSpeeds[i] = moduleVx * Math.cos(angles[i]) + moduleVy * Math.sin(angles[i]);
+    }
+  }
+
+  /**
+   * Generates the next setpoint toward the requested robot-relative chassis speeds. The results are
+   * read with {@link #getModuleSpeeds()} and {@link #getModuleAngles()}.
+   *
+   * @param requestedVx Requested X velocity in meters per second.
+   * @param requestedVy Requested Y velocity in meters per second.
+   * @param requestedOmega Requested angular velocity in radians per second.
+   * @param dt Time until the next setpoint in seconds.
+   */
+  public void generate(double requestedVx, double requestedVy, double requestedOmega, double dt) {
+    // Limit the request to speeds the modules can reach
+    double targetOmega = MathUtil.clamp(requestedOmega, -maxAngularVelocity, maxAngularVelocity);
+    double fastestModule = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      fastestModule =
+          Math.max(
+              fastestModule,
+              Math.hypot(
+                  requestedVx - targetOmega * moduleY[i], requestedVy + targetOmega * moduleX[i]));
+    }
+    double saturation = fastestModule > maxModuleSpeed ? maxModuleSpeed / fastestModule : 1.0;
+    double dvx = requestedVx * saturation - vx;
+    double dvy = requestedVy * saturation - vy;
+    double domega = targetOmega * saturation - omega;
+
+    // Largest step toward the request within the chassis and module acceleration limits
+    double step = 1.0;
+    double maxLinearStep = maxLinearAccel * dt;
+    step = limitStep(step, Math.hypot(dvx, dvy), maxLinearStep);
+    step = limitStep(step, Math.abs(domega), maxAngularAccel * dt);
+    for (int i = 0; i < moduleCount; i++) {
+      double moduleChange = Math.hypot(dvx - domega * moduleY[i], dvy + domega * moduleX[i]);
+      step = limitStep(step, moduleChange, maxLinearStep);
+    }
+
+    // Shrink the step until every moving module can steer to its new heading in time
+    double maxSteerStep = maxSteerVelocity * dt;
+    for (int i = 0; i < moduleCount; i++) {
+      if (Math.abs(moduleSpeeds[i]) < stoppedSpeed
+          || steerDistance(i, step, dvx, dvy, domega) <= maxSteerStep) {
+        continue;
+      }
+      double low = 0.0;
+      double high = step;
+      for (int iteration = 0; iteration < bisectionIterations; iteration++) {
+        double mid = (low + high) / 2.0;
+        if (steerDistance(i, mid, dvx, dvy, domega) <= maxSteerStep) {
+          low = mid;
+        } else {
+          high = mid;
+        }
+      }
+      step = low;
+    }
+
+    vx += dvx * step;
+    vy += dvy * step;
+    omega += domega * step;
+
+    // Steer toward each module's new heading and drive the component of its velocity along the
+    // wheel, reversing instead of turning more than 90 degrees
+    for (int i = 0; i < moduleCount; i++) {
+      double moduleVx = vx - omega * moduleY[i];
+      double moduleVy = vy + omega * moduleX[i];
+      if (Math.hypot(moduleVx, moduleVy) >= stoppedSpeed) {
+        double delta = halfTurnModulus(Math.atan2(moduleVy, moduleVx) - moduleAngles[i]);
+        moduleAngles[i] =
+            MathUtil.angleModulus(
+                moduleAngles[i] + MathUtil.clamp(delta, -maxSteerStep, maxSteerStep));
+      }
+      moduleSpeeds[i] = moduleVx * Math.cos(moduleAngles[i]) + moduleVy * Math.sin(moduleAngles[i]);
+    }
+  }
+
+  /** Returns the module speeds in meters per second, reused by the next setpoint. */
+  public double[] getModuleSpeeds() {
+    return moduleSpeeds;
+  }
+
+  /** Returns the module angles in radians, reused by the next setpoint. */
+  public double[] getModuleAngles() {
+    return moduleAngles;
+  }
+
+  /** Returns the robot-relative X velocity of the setpoint in meters per second. */
+  public double getVx() {
+    return vx;
+  }
+
+  /** Returns the robot-relative Y velocity of the setpoint in meters per second. */
+  public double getVy() {
+    return vy;
+  }
+
+  /** Returns the angular velocity of the setpoint in radians per second. */
+  public double getOmega() {
+    return omega;
+  }
+
+  /** Returns the largest step at most {@code step} that keeps a change within its limit. */
+  private static double limitStep(double step, double change, double maxChange) {
+    return change > maxChange ? Math.min(step, maxChange / change) : step;
+  }
+
+  /** Returns how far a module has to steer if the chassis takes a step toward the request. */
+  private double steerDistance(int module, double step, double dvx, double dvy, double domega) {
+    double stepOmega = omega + domega * step;
+    double moduleVx = vx + dvx * step - stepOmega * moduleY[module];
+    double moduleVy = vy + dvy * step + stepOmega * moduleX[module];
+    if (Math.hypot(moduleVx, moduleVy) < stoppedSpeed) {
+      return 0.0;
+    }
+    return Math.abs(halfTurnModulus(Math.atan2(moduleVy, moduleVx) - moduleAngles[module]));
+  }
+
+  /** Wraps an angle to [-pi/2, pi/2], since a module can reverse instead of turning around. */
+  private static double halfTurnModulus(double angle) {
+    return MathUtil.inputModulus(angle, -Math.PI / 2.0, Math.PI / 2.0);
+  }
+}
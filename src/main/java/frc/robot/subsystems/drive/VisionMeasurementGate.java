@@ -0,0 +1,209 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import frc.robot.Constants.VisionConstants;
+import java.util.ArrayList;
+import java.util.List;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Weighs and filters vision measurements before they reach the pose estimator.
+ *
+ * <p>Camera observations get standard deviations from their quality: they grow with the square of
+ * the tag distance, the pose ambiguity and the robot's speed, and shrink with the number of tags,
+ * down to a floor so that a tag close to the camera doesn't override the estimate entirely.
+ * Any measurement is then rejected if it is outside the field, or if its Mahalanobis distance from
+ * the estimated pose at its timestamp is too unlikely given the odometry and measurement variances.
+ *
+ * <p>The odometry variance is the estimator's configured state variance. Like WPILib's estimator,
+ * {@link SwervePoseEstimator} uses a fixed Kalman gain and doesn't track a covariance that grows
+ * with time since the last measurement, so the gate is as wide after a long run without vision as
+ * right after a measurement; {@link frc.robot.Constants.VisionConstants#mahalanobisTimeoutSecs}
+ * disables it once vision has been missing for long enough. Until a measurement is accepted again,
+ * single tag solves need an ambiguity below {@link
+ * frc.robot.Constants.VisionConstants#maxRecoveryAmbiguity}, so the estimate isn't reset by a
+ * solve that could be a tag's mirror image. Measurements without a usable rotation are gated on
+ * translation only, against the two degree of freedom bound. Main loop only.
+ */
+public class VisionMeasurementGate {
+  private final SwervePoseEstimator poseEstimator;
+  private final double[] estimate = new double[3];
+
+  private double linearSpeed = 0.0;
+  private double angularSpeed = 0.0;
+  private double lastAcceptedTimestamp = Double.NEGATIVE_INFINITY;
+
+  private long acceptedCount = 0;
+  private long ambiguityRejectedCount = 0;
+  private long outOfFieldRejectedCount = 0;
+  private long distanceRejectedCount = 0;
+  private long recoveryRejectedCount = 0;
+  private double lastMahalanobisDistance = 0.0;
+  private final List<Pose2d> acceptedPoses = new ArrayList<>();
+  private final List<Pose2d> rejectedPoses = new ArrayList<>();
+  private static final Pose2d[] emptyPoses = new Pose2d[] {};
+
+  public VisionMeasurementGate(SwervePoseEstimator poseEstimator) {
+    this.poseEstimator = poseEstimator;
+  }
+
+  /** Sets the measured robot speed used to weigh this cycle's observations. */
+  public void setRobotSpeed(double linearMetersPerSec, double angularRadPerSec) {
+    linearSpeed = Math.abs(linearMetersPerSec);
+    angularSpeed = Math.abs(angularRadPerSec);
+  }
+
+  /**
+   * Weighs a camera observation by its quality and adds it to the estimator if it passes the gate.
+   *
+   * @param x Measured X position in meters.
+   * @param y Measured Y position in meters.
+   * @param z Measured height of the robot in meters, should be near zero.
+   * @param thetaRad Measured rotation in radians.
+   * @param timestamp Time the frame was captured in seconds.
+   * @param tagCount Number of tags used to solve the pose.
+   * @param averageTagDistance Average distance to the tags in meters.
+   * @param ambiguity Pose ambiguity of a single tag solve.
+   */
+  public void addObservation(
+      double x,
+      double y,
+      double z,
+      double thetaRad,
+      double timestamp,
+      int tagCount,
+      double averageTagDistance,
+      double ambiguity) {
+    if (tagCount == 1 && ambiguity > VisionConstants.maxAmbiguity) {
+      ambiguityRejectedCount++;
+      rejectedPoses.add(new Pose2d(x, y, new Rotation2d(thetaRad)));
+      return;
+    }
+
+    double stdDevFactor =
+        averageTagDistance
+            * averageTagDistance
+            / tagCount
+            * (1.0 + VisionConstants.ambiguityStdDevFactor * ambiguity)
+            * (1.0
+                + VisionConstants.linearSpeedStdDevFactor * linearSpeed
+                + VisionConstants.angularSpeedStdDevFactor * angularSpeed);
+    double linearStdDev =
+        Math.max(VisionConstants.minLinearStdDev, VisionConstants.linearStdDev * stdDevFactor);
+    double angularStdDev = Double.POSITIVE_INFINITY;
+    if (tagCount > 1) {
+      angularStdDev =
+          Math.max(VisionConstants.minAngularStdDev, VisionConstants.angularStdDev * stdDevFactor);
+    }
+    boolean canRecover = tagCount > 1 || ambiguity <= VisionConstants.maxRecoveryAmbiguity;
+    addMeasurement(
+        x, y, z, thetaRad, timestamp, linearStdDev, linearStdDev, angularStdDev, canRecover);
+  }
+
+  /**
+   * Adds a measurement with known standard deviations to the estimator if it passes the gate. The
+   * measurement is trusted to reacquire the pose while the distance gate is skipped.
+   *
+   * @param x Measured X position in meters.
+   * @param y Measured Y position in meters.
+   * @param z Measured height of the robot in meters, should be near zero.
+   * @param thetaRad Measured rotation in radians.
+   * @param timestamp Time the measurement was captured in seconds.
+   * @param xStdDev Standard deviation of the X position in meters.
+   * @param yStdDev Standard deviation of the Y position in meters.
+   * @param thetaStdDev Standard deviation of the rotation in radians.
+   */
+  public void addMeasurement(
+      double x,
+      double y,
+      double z,
+      double thetaRad,
+      double timestamp,
+      double xStdDev,
+      double yStdDev,
+      double thetaStdDev) {
+    addMeasurement(x, y, z, thetaRad, timestamp, xStdDev, yStdDev, thetaStdDev, true);
+  }
+
+  private void addMeasurement(
+      double x,
+      double y,
+      double z,
+      double thetaRad,
+      double timestamp,
+      double xStdDev,
+      double yStdDev,
+      double thetaStdDev,
+      boolean canRecover) {
+    if (x < -VisionConstants.fieldBorderMargin
+        || x > VisionConstants.fieldLayout.getFieldLength() + VisionConstants.fieldBorderMargin
+        || y < -VisionConstants.fieldBorderMargin
+        || y > VisionConstants.fieldLayout.getFieldWidth() + VisionConstants.fieldBorderMargin
+        || Math.abs(z) > VisionConstants.maxZError) {
+      outOfFieldRejectedCount++;
+      rejectedPoses.add(new Pose2d(x, y, new Rotation2d(thetaRad)));
+      return;
+    }
+
+    if (timestamp - lastAcceptedTimestamp <= VisionConstants.mahalanobisTimeoutSecs
+        && poseEstimator.getPoseAt(timestamp, estimate)) {
+      double dx = x - estimate[0];
+      double dy = y - estimate[1];
+      double distanceSquared =
+          dx * dx / (poseEstimator.getStateVariance(0) + xStdDev * xStdDev)
+              + dy * dy / (poseEstimator.getStateVariance(1) + yStdDev * yStdDev);
+      double maxDistanceSquared = VisionConstants.maxTranslationMahalanobisDistanceSquared;
+      if (Double.isFinite(thetaStdDev)) {
+        double dtheta = MathUtil.angleModulus(thetaRad - estimate[2]);
+        distanceSquared +=
+            dtheta * dtheta / (poseEstimator.getStateVariance(2) + thetaStdDev * thetaStdDev);
+        maxDistanceSquared = VisionConstants.maxMahalanobisDistanceSquared;
+      }
+      lastMahalanobisDistance = Math.sqrt(distanceSquared);
+      if (distanceSquared > maxDistanceSquared) {
+        distanceRejectedCount++;
+        rejectedPoses.add(new Pose2d(x, y, new Rotation2d(thetaRad)));
+        return;
+      }
+    } else if (!canRecover) {
+      // Nothing recent to check against, so only a reliable solve may reset the estimate
+      recoveryRejectedCount++;
+      rejectedPoses.add(new Pose2d(x, y, new Rotation2d(thetaRad)));
+      return;
+    }
+
+    poseEstimator.addVisionMeasurement(x, y, thetaRad, timestamp, xStdDev, yStdDev, thetaStdDev);
+    lastAcceptedTimestamp = Math.max(lastAcceptedTimestamp, timestamp);
+    acceptedCount++;
+    acceptedPoses.add(new Pose2d(x, y, new Rotation2d(thetaRad)));
+  }
+
+  /** Logs the measurements accepted and rejected this cycle and the running totals. */
+  public void recordOutput(String key) {
+    Logger.recordOutput(key + "/AcceptedPoses", acceptedPoses.toArray(emptyPoses));
+    Logger.recordOutput(key + "/RejectedPoses", rejectedPoses.toArray(emptyPoses));
+    Logger.recordOutput(key + "/AcceptedCount", acceptedCount);
+    Logger.recordOutput(key + "/AmbiguityRejectedCount", ambiguityRejectedCount);
+    Logger.recordOutput(key + "/OutOfFieldRejectedCount", outOfFieldRejectedCount);
+    Logger.recordOutput(key + "/DistanceRejectedCount", distanceRejectedCount);
+    Logger.recordOutput(key + "/RecoveryRejectedCount", recoveryRejectedCount);
+    Logger.recordOutput(key + "/MahalanobisDistance", lastMahalanobisDistance);
+    acceptedPoses.clear();
+    rejectedPoses.clear();
+  }
+}
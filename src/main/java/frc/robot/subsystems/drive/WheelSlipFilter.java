@@ -0,0 +1,151 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import edu.wpi.first.math.geometry.Translation2d;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Rejects slipping wheels from odometry samples before they reach the pose estimator.
+ *
+ * <p>For each sample the rotation is taken from the gyro, and each module's displacement is
+ * compared with the translation fit to the other modules plus that rotation. The module furthest
+ * from the fit is treated as slipping if its error is above {@link
+ * frc.robot.Constants.DriveConstants#slipMinErrorMeters} plus {@link
+ * frc.robot.Constants.DriveConstants#slipErrorRatio} of its expected displacement, and its delta is
+ * replaced with the expected displacement along its heading. At most one module is rejected per
+ * sample, since a fit to fewer than three modules can't tell which ones are slipping. Main loop
+ * only.
+ */
+public class WheelSlipFilter {
+  private final int moduleCount;
+  private final double[] moduleX;
+  private final double[] moduleY;
+  private final double minErrorMeters;
+  private final double errorRatio;
+
+  // Scratch for the displacement of each module without the rotation
+  private final double[] translationX;
+  private final double[] translationY;
+
+  private final boolean[] slipping;
+  private final long[] slipEvents;
+  private final long[] slipSamples;
+  private long totalSlipEvents = 0;
+  private double lastSlipError = 0.0;
+
+  /**
+   * Creates a new filter.
+   *
+   * @param moduleTranslations Module positions relative to the robot center.
+   * @param minErrorMeters Error in one sample above which a module may be slipping.
+   * @param errorRatio Additional error allowed per meter of expected displacement.
+   */
+  public WheelSlipFilter(
+      Translation2d[] moduleTranslations, double minErrorMeters, double errorRatio) {
+    moduleCount = moduleTranslations.length;
+    moduleX = new double[moduleCount];
+    moduleY = new double[moduleCount];
+    for (int i = 0; i < moduleCount; i++) {
+      moduleX[i] = moduleTranslations[i].getX();
+      moduleY[i] = moduleTranslations[i].getY();
+    }
+    this.minErrorMeters = minErrorMeters;
+    this.errorRatio = errorRatio;
+    translationX = new double[moduleCount];
+    translationY = new double[moduleCount];
+    slipping = new boolean[moduleCount];
+    slipEvents = new long[moduleCount];
+    slipSamples = new long[moduleCount];
+  }
+
+  /**
+   * Checks one odometry sample for a slipping module and replaces its delta if one is found.
+   *
+   * @param distanceDeltas Distance each module drove since the last sample in meters, modified in
+   *     place.
+   * @param angles Module angles in radians.
+   * @param rotationDelta Robot rotation since the last sample in radians.
+   * @return The index of the rejected module, or -1 if none was slipping.
+   */
+  public int filter(double[] distanceDeltas, double[] angles, double rotationDelta) {
+    // Remove the rotation, leaving the translation each module measured
+    double sumX = 0.0;
+    double sumY = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      double cos = Math.cos(angles[i]);
+      double sin = Math.sin(angles[i]);
+      translationX[i] = distanceDeltas[i] * cos + rotationDelta * moduleY[i];
+      translationY[i] = distanceDeltas[i] * sin - rotationDelta * moduleX[i];
+      sumX += translationX[i];
+      sumY += translationY[i];
+    }
+
+    // Find the module furthest from the translation fit to the others
+    int worst = -1;
+    double worstExcess = 0.0;
+    double worstError = 0.0;
+    double worstExpectedX = 0.0;
+    double worstExpectedY = 0.0;
+    for (int i = 0; i < moduleCount; i++) {
+      double fitX = (sumX - translationX[i]) / (moduleCount - 1);
+      double fitY = (sumY - translationY[i]) / (moduleCount - 1);
+      double error = Math.hypot(translationX[i] - fitX, translationY[i] - fitY);
+      double expectedX = fitX - rotationDelta * moduleY[i];
+      double expectedY = fitY + rotationDelta * moduleX[i];
+      double threshold = minErrorMeters + errorRatio * Math.hypot(expectedX, expectedY);
+      if (error - threshold > worstExcess) {
+        worst = i;
+        worstExcess = error - threshold;
+        worstError = error;
+        worstExpectedX = expectedX;
+        worstExpectedY = expectedY;
+      }
+    }
+
+    for (int i = 0; i < moduleCount; i++) {
+      boolean slip = i == worst;
+      if (slip && !slipping[i]) {
+        slipEvents[i]++;
+        totalSlipEvents++;
+      }
+      if (slip) {
+        slipSamples[i]++;
+      }
+      slipping[i] = slip;
+    }
+    if (worst < 0) {
+      return -1;
+    }
+    lastSlipError = worstError;
+    distanceDeltas[worst] =
+        worstExpectedX * Math.cos(angles[worst]) + worstExpectedY * Math.sin(angles[worst]);
+    return worst;
+  }
+
+  /** Returns the number of times a module started slipping. */
+  public long getSlipEvents() {
+    return totalSlipEvents;
+  }
+
+  /** Logs which modules slipped in the last sample and the running totals. */
+  public void recordOutput(String key) {
+    // Logged arrays are read after the cycle ends, so they are copied
+    Logger.recordOutput(key + "/Slipping", slipping.clone());
+    Logger.recordOutput(key + "/Events", totalSlipEvents);
+    Logger.recordOutput(key + "/ModuleEvents", slipEvents.clone());
+    Logger.recordOutput(key + "/ModuleSamples", slipSamples.clone());
+    Logger.recordOutput(key + "/LastError", lastSlipError);
+  }
+}
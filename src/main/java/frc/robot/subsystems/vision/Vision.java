@@ -0,0 +1,70 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import frc.robot.Constants.VisionConstants;
+import frc.util.Alert;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * AprilTag pose measurements from every camera.
+ *
+ * <p>Camera results are read and solved on a separate thread, this class only hands the poses
+ * received since the last cycle to the pose estimator. It is run by {@link
+ * frc.robot.subsystems.drive.Drive} after odometry, so each batch is applied on top of the samples
+ * it was captured between.
+ */
+public class Vision {
+  private final VisionIO io;
+  private final VisionIOInputsAutoLogged inputs = new VisionIOInputsAutoLogged();
+  private final Alert[] cameraDisconnected;
+
+  /** Receives a solved robot pose along with the quality of the solve. */
+  @FunctionalInterface
+  public static interface VisionConsumer {
+    public void accept(
+        double x,
+        double y,
+        double z,
+        double thetaRad,
+        double timestamp,
+        int tagCount,
+        double averageTagDistance,
+        double ambiguity);
+  }
+
+  public Vision(VisionIO io) {
+    this.io = io;
+
+    cameraDisconnected = new Alert[VisionConstants.cameraNames.length];
+    for (int i = 0; i < cameraDisconnected.length; i++) {
+      cameraDisconnected[i] =
+          new Alert(VisionConstants.cameraNames[i] + " disconnected!", Alert.AlertType.WARNING);
+    }
+  }
+
+  /** Updates and logs inputs, draining the poses received since the last cycle. */
+  public void processInputs() {
+    io.processInputs(inputs);
+    Logger.processInputs("Vision", inputs);
+
+    for (int i = 0; i < cameraDisconnected.length; i++) {
+      cameraDisconnected[i].set(i >= inputs.cameraConnected.length || !inputs.cameraConnected[i]);
+    }
+  }
+
+  /** Passes every pose received this cycle to the consumer, oldest first. */
+  public void applyMeasurements(VisionConsumer consumer) {
+    for (int i = 0; i < inputs.timestamps.length; i++) {
+      Pose3d pose = inputs.robotPoses[i];
+      consumer.accept(
+          pose.getX(),
+          pose.getY(),
+          pose.getZ(),
+          pose.getRotation().getZ(),
+          inputs.timestamps[i],
+          inputs.tagCounts[i],
+          inputs.averageTagDistances[i],
+          inputs.ambiguities[i]);
+    }
+  }
+}
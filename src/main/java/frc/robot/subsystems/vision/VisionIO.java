@@ -0,0 +1,22 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import org.littletonrobotics.junction.AutoLog;
+
+public interface VisionIO {
+  @AutoLog
+  public static class VisionIOInputs {
+    public boolean[] cameraConnected = new boolean[] {};
+
+    // One entry per observation received since the last cycle, sorted by timestamp
+    public double[] timestamps = new double[] {};
+    public Pose3d[] robotPoses = new Pose3d[] {};
+    public int[] cameras = new int[] {};
+    public int[] tagCounts = new int[] {};
+    public double[] averageTagDistances = new double[] {};
+    public double[] ambiguities = new double[] {};
+  }
+
+  /** Updates the set of loggable inputs. */
+  public default void processInputs(VisionIOInputs inputs) {}
+}
@@ -0,0 +1,61 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+import frc.robot.Constants.VisionConstants;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import org.photonvision.PhotonCamera;
+
+/** PhotonVision cameras, with poses solved on a {@link VisionThread}. */
+public class VisionIOPhotonVision implements VisionIO {
+  protected final PhotonCamera[] cameras;
+  private final VisionThread thread;
+  private final Queue<VisionObservation> observations;
+  private final List<VisionObservation> drained = new ArrayList<>();
+
+  public VisionIOPhotonVision() {
+    cameras = new PhotonCamera[VisionConstants.cameraNames.length];
+    for (int i = 0; i < cameras.length; i++) {
+      cameras[i] = new PhotonCamera(VisionConstants.cameraNames[i]);
+    }
+    thread = new VisionThread(cameras, VisionConstants.robotToCameras, VisionConstants.fieldLayout);
+    observations = thread.getObservations();
+    thread.start();
+  }
+
+  @Override
+  public void processInputs(VisionIOInputs inputs) {
+    // A new array every cycle, since logged arrays are stored by reference
+    inputs.cameraConnected = new boolean[cameras.length];
+    for (int i = 0; i < cameras.length; i++) {
+      inputs.cameraConnected[i] = cameras[i].isConnected();
+    }
+
+    VisionObservation observation;
+    while ((observation = observations.poll()) != null) {
+      drained.add(observation);
+    }
+    // Each pass of the thread is in order, but a slow camera can land in a later pass
+    drained.sort(Comparator.comparingDouble(VisionObservation::timestamp));
+
+    int count = drained.size();
+    inputs.timestamps = new double[count];
+    inputs.robotPoses = new Pose3d[count];
+    inputs.cameras = new int[count];
+    inputs.tagCounts = new int[count];
+    inputs.averageTagDistances = new double[count];
+    inputs.ambiguities = new double[count];
+    for (int i = 0; i < count; i++) {
+      observation = drained.get(i);
+      inputs.timestamps[i] = observation.timestamp();
+      inputs.robotPoses[i] = observation.pose();
+      inputs.cameras[i] = observation.camera();
+      inputs.tagCounts[i] = observation.tagCount();
+      inputs.averageTagDistances[i] = observation.averageTagDistance();
+      inputs.ambiguities[i] = observation.ambiguity();
+    }
+    drained.clear();
+  }
+}
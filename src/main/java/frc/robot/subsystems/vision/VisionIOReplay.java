@@ -0,0 +1,6 @@
+package frc.robot.subsystems.vision;
+
+public class VisionIOReplay implements VisionIO {
+  /** Updates the set of loggable inputs. */
+  public void processInputs(VisionIOInputs inputs) {}
+}
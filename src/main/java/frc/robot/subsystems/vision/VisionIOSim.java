@@ -0,0 +1,47 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import frc.robot.Constants.VisionConstants;
+import java.util.function.Supplier;
+import org.photonvision.simulation.PhotonCameraSim;
+import org.photonvision.simulation.SimCameraProperties;
+import org.photonvision.simulation.VisionSystemSim;
+
+/**
+ * Simulated cameras using PhotonLib's vision system sim.
+ *
+ * <p>The simulated cameras publish to the same NetworkTables topics as real ones, so the results
+ * go through the same {@link VisionThread} and pose solver as on the robot.
+ */
+public class VisionIOSim extends VisionIOPhotonVision {
+  private final VisionSystemSim visionSim = new VisionSystemSim("main");
+  private final Supplier<Pose2d> poseSupplier;
+
+  /**
+   * Creates the simulated cameras.
+   *
+   * @param poseSupplier Supplies the pose the cameras see the field from.
+   */
+  public VisionIOSim(Supplier<Pose2d> poseSupplier) {
+    this.poseSupplier = poseSupplier;
+    visionSim.addAprilTags(VisionConstants.fieldLayout);
+
+    SimCameraProperties properties = new SimCameraProperties();
+    properties.setCalibration(960, 720, Rotation2d.fromDegrees(90));
+    properties.setCalibError(0.35, 0.10);
+    properties.setFPS(30);
+    properties.setAvgLatencyMs(35);
+    properties.setLatencyStdDevMs(5);
+    for (int i = 0; i < cameras.length; i++) {
+      visionSim.addCamera(
+          new PhotonCameraSim(cameras[i], properties), VisionConstants.robotToCameras[i]);
+    }
+  }
+
+  @Override
+  public void processInputs(VisionIOInputs inputs) {
+    visionSim.update(poseSupplier.get());
+    super.processInputs(inputs);
+  }
+}
@@ -0,0 +1,21 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.math.geometry.Pose3d;
+
+/**
+ * A robot pose solved from one camera frame.
+ *
+ * @param camera Index of the camera in {@link frc.robot.Constants.VisionConstants#cameraNames}.
+ * @param timestamp FPGA time the frame was captured in seconds.
+ * @param pose Field-relative robot pose.
+ * @param tagCount Number of tags used to solve the pose.
+ * @param averageTagDistance Average distance from the camera to the tags used in meters.
+ * @param ambiguity Pose ambiguity of a single tag solve, zero when multiple tags were used.
+ */
+public record VisionObservation(
+    int camera,
+    double timestamp,
+    Pose3d pose,
+    int tagCount,
+    double averageTagDistance,
+    double ambiguity) {}
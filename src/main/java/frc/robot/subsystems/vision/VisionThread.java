@@ -0,0 +1,111 @@
+package frc.robot.subsystems.vision;
+
+import edu.wpi.first.apriltag.AprilTagFieldLayout;
+import edu.wpi.first.math.geometry.Transform3d;
+import frc.robot.Constants.VisionConstants;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import org.photonvision.EstimatedRobotPose;
+import org.photonvision.PhotonCamera;
+import org.photonvision.PhotonPoseEstimator;
+import org.photonvision.PhotonPoseEstimator.PoseStrategy;
+import org.photonvision.targeting.PhotonPipelineResult;
+import org.photonvision.targeting.PhotonTrackedTarget;
+
+/**
+ * Reads camera results and solves robot poses off the main loop.
+ *
+ * <p>Each pass checks every camera for a new frame, solves the robot pose with the coprocessor's
+ * multi-tag result (falling back to the least ambiguous single tag), and publishes the pass's
+ * observations to a lock-free queue in capture order. The main loop only ever polls the queue, so
+ * it never waits on NetworkTables or the pose solver.
+ */
+public class VisionThread extends Thread {
+  private final PhotonCamera[] cameras;
+  private final PhotonPoseEstimator[] poseEstimators;
+  private final double[] lastTimestamps;
+  private final Queue<VisionObservation> observations = new ConcurrentLinkedQueue<>();
+
+  // Vision thread only
+  private final List<VisionObservation> batch = new ArrayList<>();
+
+  public VisionThread(
+      PhotonCamera[] cameras, Transform3d[] robotToCameras, AprilTagFieldLayout fieldLayout) {
+    this.cameras = cameras;
+    poseEstimators = new PhotonPoseEstimator[cameras.length];
+    lastTimestamps = new double[cameras.length];
+    for (int i = 0; i < cameras.length; i++) {
+      poseEstimators[i] =
+          new PhotonPoseEstimator(
+              fieldLayout, PoseStrategy.MULTI_TAG_PNP_ON_COPROCESSOR, robotToCameras[i]);
+      poseEstimators[i].setMultiTagFallbackStrategy(PoseStrategy.LOWEST_AMBIGUITY);
+    }
+    setName("VisionThread");
+    setDaemon(true);
+  }
+
+  /** Returns the queue of solved poses, oldest first. Only the main loop should poll it. */
+  public Queue<VisionObservation> getObservations() {
+    return observations;
+  }
+
+  @Override
+  public void run() {
+    long periodNanos = (long) (VisionConstants.pollPeriodSecs * 1e9);
+    long deadline = System.nanoTime();
+    while (true) {
+      for (int i = 0; i < cameras.length; i++) {
+        PhotonPipelineResult result = cameras[i].getLatestResult();
+        double timestamp = result.getTimestampSeconds();
+        if (timestamp == lastTimestamps[i] || !result.hasTargets()) {
+          continue;
+        }
+        lastTimestamps[i] = timestamp;
+
+        solve(i, result).ifPresent(batch::add);
+      }
+
+      // Publish in capture order, so the estimator replays as little history as possible
+      batch.sort(Comparator.comparingDouble(VisionObservation::timestamp));
+      observations.addAll(batch);
+      batch.clear();
+
+      deadline += periodNanos;
+      long now = System.nanoTime();
+      if (deadline < now) {
+        // Fell behind, skip the missed polls rather than running them back to back
+        deadline = now;
+      }
+      LockSupport.parkNanos(deadline - now);
+    }
+  }
+
+  /** Solves the robot pose from one camera's result, or returns empty if it can't be solved. */
+  Optional<VisionObservation> solve(int camera, PhotonPipelineResult result) {
+    Optional<EstimatedRobotPose> estimate = poseEstimators[camera].update(result);
+    if (estimate.isEmpty()) {
+      return Optional.empty();
+    }
+    return Optional.of(createObservation(camera, estimate.get()));
+  }
+
+  private static VisionObservation createObservation(int camera, EstimatedRobotPose estimate) {
+    List<PhotonTrackedTarget> targets = estimate.targetsUsed;
+    double totalDistance = 0.0;
+    for (int i = 0; i < targets.size(); i++) {
+      totalDistance += targets.get(i).getBestCameraToTarget().getTranslation().getNorm();
+    }
+    return new VisionObservation(
+        camera,
+        estimate.timestampSeconds,
+        estimate.estimatedPose,
+        targets.size(),
+        totalDistance / Math.max(1, targets.size()),
+        targets.size() == 1 ? targets.get(0).getPoseAmbiguity() : 0.0);
+  }
+}
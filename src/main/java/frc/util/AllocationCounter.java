@@ -0,0 +1,40 @@
+// Copyright (c) 2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// Use of this source code is governed by an MIT-style
+// license that can be found in the LICENSE file at
+// the root directory of this project.
+
+package frc.util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the number of bytes the current thread has allocated, for measuring the allocation of a
+ * section of code. Reading the count does not allocate.
+ */
+public class AllocationCounter {
+  private static final com.sun.management.ThreadMXBean threadBean;
+
+  static {
+    com.sun.management.ThreadMXBean bean = null;
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean sunBean
+        && sunBean.isThreadAllocatedMemorySupported()) {
+      sunBean.setThreadAllocatedMemoryEnabled(true);
+      bean = sunBean;
+    }
+    threadBean = bean;
+  }
+
+  private AllocationCounter() {}
+
+  /** Returns true if the JVM reports per-thread allocation. */
+  public static boolean isSupported() {
+    return threadBean != null;
+  }
+
+  /** Returns the bytes allocated by the current thread so far, or 0 if not supported. */
+  public static long getAllocatedBytes() {
+    return threadBean != null ? threadBean.getCurrentThreadAllocatedBytes() : 0;
+  }
+}
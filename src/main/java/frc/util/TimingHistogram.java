@@ -0,0 +1,68 @@
+package frc.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.littletonrobotics.junction.Logger;
+
+/**
+ * Fixed-bucket histogram of durations, written by one thread and logged from the main loop.
+ *
+ * <p>Recording never locks or allocates, so it is safe to call from high-frequency threads. Counts
+ * and the maximum are cumulative; the mean and count cover the durations recorded since the
+ * previous log.
+ */
+public class TimingHistogram {
+  private final double bucketWidthSecs;
+  private final AtomicLongArray counts; // Last bucket holds everything past the range
+
+  // Written by the recording thread only
+  private volatile long totalCount = 0;
+  private volatile double totalSecs = 0.0;
+  private volatile double maxSecs = 0.0;
+
+  // Main loop only
+  private long lastLoggedCount = 0;
+  private double lastLoggedSecs = 0.0;
+
+  /**
+   * Creates a new histogram.
+   *
+   * @param bucketWidthSecs Width of each bucket in seconds.
+   * @param bucketCount Number of buckets, including the overflow bucket.
+   */
+  public TimingHistogram(double bucketWidthSecs, int bucketCount) {
+    this.bucketWidthSecs = bucketWidthSecs;
+    counts = new AtomicLongArray(bucketCount);
+  }
+
+  /** Records a duration. Must only be called from a single thread. */
+  public void record(double secs) {
+    int bucket = (int) Math.min(Math.max(secs, 0.0) / bucketWidthSecs, counts.length() - 1);
+    counts.lazySet(bucket, counts.get(bucket) + 1);
+    totalSecs += secs;
+    if (secs > maxSecs) {
+      maxSecs = secs;
+    }
+    totalCount++;
+  }
+
+  /** Logs the histogram and the statistics since the previous call. Main loop only. */
+  public void recordOutput(String key) {
+    long[] snapshot = new long[counts.length()];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    long count = totalCount;
+    double secs = totalSecs;
+
+    long newCount = count - lastLoggedCount;
+    Logger.recordOutput(key + "/Histogram", snapshot);
+    Logger.recordOutput(key + "/BucketWidthMs", bucketWidthSecs * 1000.0);
+    Logger.recordOutput(key + "/Count", newCount);
+    Logger.recordOutput(
+        key + "/MeanMs", newCount > 0 ? (secs - lastLoggedSecs) / newCount * 1000.0 : 0.0);
+    Logger.recordOutput(key + "/MaxMs", maxSecs * 1000.0);
+
+    lastLoggedCount = count;
+    lastLoggedSecs = secs;
+  }
+}
@@ -0,0 +1,72 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import edu.wpi.first.hal.HAL;
+import frc.util.AllocationCounter;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class DriveTest {
+  private static final int warmupCycles = 50_000;
+  private static final int measuredCycles = 1_000;
+  // Room for one-off allocations outside the drive code, such as a late JIT deoptimization or a
+  // lazily created JDK object. An allocation every cycle is at least 16 bytes, 16 KB in total.
+  private static final long toleranceBytes = 512;
+
+  @BeforeAll
+  static void setup() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  /** Teleop runs every cycle while driving, so once the JIT has warmed up it shouldn't allocate. */
+  @Test
+  void runTeleopFieldRelativeDoesNotAllocate() {
+    assumeTrue(AllocationCounter.isSupported());
+    Drive drive =
+        new Drive(
+            new GyroIOReplay(),
+            new ModuleIOReplay(),
+            new ModuleIOReplay(),
+            new ModuleIOReplay(),
+            new ModuleIOReplay());
+
+    for (int cycle = 0; cycle < warmupCycles; cycle++) {
+      runCycle(drive, cycle);
+    }
+
+    // Reading the counter may allocate, so measure it on its own first
+    long overheadStart = AllocationCounter.getAllocatedBytes();
+    long overhead = AllocationCounter.getAllocatedBytes() - overheadStart;
+    long start = AllocationCounter.getAllocatedBytes();
+    for (int cycle = warmupCycles; cycle < warmupCycles + measuredCycles; cycle++) {
+      runCycle(drive, cycle);
+    }
+    long allocatedBytes = AllocationCounter.getAllocatedBytes() - start - overhead;
+
+    assertTrue(
+        allocatedBytes <= toleranceBytes,
+        allocatedBytes + " bytes allocated over " + measuredCycles + " cycles");
+  }
+
+  /** Drives a path that changes direction and reverses, so the modules flip their setpoints. */
+  private static void runCycle(Drive drive, int cycle) {
+    double time = cycle * 0.02;
+    drive.runTeleopFieldRelative(
+        3.0 * Math.cos(0.5 * time), 2.0 * Math.sin(0.3 * time), 4.0 * Math.sin(0.7 * time));
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import frc.robot.Constants.DriveConstants;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.Test;
+
+/** Checks that integrating odometry samples doesn't allocate once the JIT has warmed up. */
+class OdometryIntegratorTest {
+  private static final int samplesPerCycle = 5;
+  private static final double samplePeriodSecs = 0.004;
+  private static final int warmupCycles = 20_000;
+  private static final int measuredCycles = 1_000;
+
+  private final Translation2d[] translations = Drive.getModuleTranslations();
+  private final SwervePoseEstimator poseEstimator =
+      new SwervePoseEstimator(
+          new SwerveKinematics(translations),
+          new Rotation2d(),
+          new SwerveModulePosition[] {
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition(),
+            new SwerveModulePosition()
+          },
+          new Pose2d());
+  private final OdometryIntegrator integrator =
+      new OdometryIntegrator(
+          new SwerveKinematics(translations),
+          new WheelSlipFilter(
+              translations, DriveConstants.slipMinErrorMeters, DriveConstants.slipErrorRatio),
+          poseEstimator);
+
+  // Inputs for one cycle, updated in place like the module and gyro inputs
+  private final double[] timestamps = new double[samplesPerCycle];
+  private final double[][] drivePositions = new double[4][samplesPerCycle];
+  private final double[][] turnPositions = new double[4][samplesPerCycle];
+  private final double[] yawTimestamps = new double[samplesPerCycle];
+  private Rotation2d[] yawPositions = new Rotation2d[samplesPerCycle];
+  private final Rotation2d[] emptyYawPositions = new Rotation2d[] {};
+  private final double[] emptyYawTimestamps = new double[] {};
+
+  // Gyro samples for every cycle, created up front since the gyro inputs hold Rotation2d objects
+  private final Rotation2d[][] yawPositionsByCycle =
+      new Rotation2d[warmupCycles + measuredCycles][samplesPerCycle];
+
+  @Test
+  void integrateDoesNotAllocate() {
+    com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    for (int cycle = 0; cycle < yawPositionsByCycle.length; cycle++) {
+      for (int i = 0; i < samplesPerCycle; i++) {
+        yawPositionsByCycle[cycle][i] = new Rotation2d(getYaw(cycle * samplesPerCycle + i));
+      }
+    }
+
+    for (int cycle = 0; cycle < warmupCycles; cycle++) {
+      runCycle(cycle);
+    }
+
+    // The allocation counter itself may allocate, so measure it on its own first
+    long overheadStart = threadBean.getThreadAllocatedBytes(threadId);
+    long overhead = threadBean.getThreadAllocatedBytes(threadId) - overheadStart;
+    long start = threadBean.getThreadAllocatedBytes(threadId);
+    for (int cycle = warmupCycles; cycle < warmupCycles + measuredCycles; cycle++) {
+      runCycle(cycle);
+    }
+    long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - start - overhead;
+
+    assertEquals(0, allocatedBytes, "Bytes allocated over " + measuredCycles + " cycles");
+  }
+
+  /**
+   * Fills the inputs for a cycle and integrates them. Cycles alternate between a sampled gyro, the
+   * latest gyro angle, and a disconnected gyro, and the front left wheel slips now and then.
+   */
+  private void runCycle(int cycle) {
+    for (int i = 0; i < samplesPerCycle; i++) {
+      int sample = cycle * samplesPerCycle + i;
+      double time = sample * samplePeriodSecs;
+      timestamps[i] = time;
+      yawTimestamps[i] = time;
+      for (int module = 0; module < 4; module++) {
+        drivePositions[module][i] = 2.0 * time + (module == 0 && sample % 500 < 10 ? 0.05 : 0.0);
+        turnPositions[module][i] = Math.sin(time) + module * 0.1;
+      }
+    }
+    yawPositions = yawPositionsByCycle[cycle];
+
+    switch (cycle % 3) {
+      case 0:
+        integrator.integrate(
+            timestamps,
+            samplesPerCycle,
+            drivePositions,
+            turnPositions,
+            true,
+            yawTimestamps,
+            yawPositions,
+            0.0);
+        break;
+      case 1:
+        integrator.integrate(
+            timestamps,
+            samplesPerCycle,
+            drivePositions,
+            turnPositions,
+            true,
+            emptyYawTimestamps,
+            emptyYawPositions,
+            yawPositions[samplesPerCycle - 1].getRadians());
+        break;
+      default:
+        integrator.integrate(
+            timestamps,
+            samplesPerCycle,
+            drivePositions,
+            turnPositions,
+            false,
+            emptyYawTimestamps,
+            emptyYawPositions,
+            0.0);
+        break;
+    }
+  }
+
+  private static double getYaw(int sample) {
+    return 0.5 * sample * samplePeriodSecs;
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.geometry.Twist2d;
+import edu.wpi.first.math.kinematics.ChassisSpeeds;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import edu.wpi.first.math.kinematics.SwerveModuleState;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/** Checks that SwerveKinematics gives the same results as WPILib's SwerveDriveKinematics. */
+class SwerveKinematicsTest {
+  private static final double epsilon = 1e-9;
+  private static final int iterations = 1000;
+
+  static Translation2d[][] layouts() {
+    return new Translation2d[][] {
+      Drive.getModuleTranslations(),
+      new Translation2d[] {
+        new Translation2d(0.3, 0.2),
+        new Translation2d(0.3, -0.2),
+        new Translation2d(-0.3, 0.2),
+        new Translation2d(-0.3, -0.2)
+      }
+    };
+  }
+
+  @ParameterizedTest
+  @MethodSource("layouts")
+  void toModuleStatesMatchesWpilib(Translation2d[] translations) {
+    SwerveKinematics kinematics = new SwerveKinematics(translations);
+    SwerveKinematics primitiveKinematics = new SwerveKinematics(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    double[] speeds = new double[translations.length];
+    double[] angles = new double[translations.length];
+    Random random = new Random(6328);
+
+    for (int i = 0; i < iterations; i++) {
+      // Every tenth set of speeds is zero, where the modules keep their last headings
+      ChassisSpeeds chassisSpeeds =
+          i % 10 == 0 ? new ChassisSpeeds() : randomChassisSpeeds(random);
+      SwerveModuleState[] expected = wpilib.toSwerveModuleStates(chassisSpeeds);
+      SwerveModuleState[] actual = kinematics.toSwerveModuleStates(chassisSpeeds);
+      primitiveKinematics.toModuleStates(
+          chassisSpeeds.vxMetersPerSecond,
+          chassisSpeeds.vyMetersPerSecond,
+          chassisSpeeds.omegaRadiansPerSecond,
+          speeds,
+          angles);
+
+      for (int module = 0; module < translations.length; module++) {
+        double expectedAngle = expected[module].angle.getRadians();
+        assertEquals(
+            expected[module].speedMetersPerSecond, actual[module].speedMetersPerSecond, epsilon);
+        assertEquals(0.0, angleError(expectedAngle, actual[module].angle.getRadians()), epsilon);
+        assertEquals(expected[module].speedMetersPerSecond, speeds[module], epsilon);
+        assertEquals(0.0, angleError(expectedAngle, angles[module]), epsilon);
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("layouts")
+  void toChassisSpeedsMatchesWpilib(Translation2d[] translations) {
+    SwerveKinematics kinematics = new SwerveKinematics(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    SwerveModuleState[] states = new SwerveModuleState[translations.length];
+    double[] speeds = new double[translations.length];
+    double[] angles = new double[translations.length];
+    double[] chassisSpeeds = new double[3];
+    Random random = new Random(6328);
+
+    for (int i = 0; i < iterations; i++) {
+      for (int module = 0; module < translations.length; module++) {
+        speeds[module] = random.nextDouble(-5.0, 5.0);
+        angles[module] = random.nextDouble(-Math.PI, Math.PI);
+        states[module] = new SwerveModuleState(speeds[module], new Rotation2d(angles[module]));
+      }
+      ChassisSpeeds expected = wpilib.toChassisSpeeds(states);
+      ChassisSpeeds actual = kinematics.toChassisSpeeds(states);
+      kinematics.toChassisSpeeds(speeds, angles, chassisSpeeds);
+
+      assertEquals(expected.vxMetersPerSecond, actual.vxMetersPerSecond, epsilon);
+      assertEquals(expected.vyMetersPerSecond, actual.vyMetersPerSecond, epsilon);
+      assertEquals(expected.omegaRadiansPerSecond, actual.omegaRadiansPerSecond, epsilon);
+      assertEquals(expected.vxMetersPerSecond, chassisSpeeds[0], epsilon);
+      assertEquals(expected.vyMetersPerSecond, chassisSpeeds[1], epsilon);
+      assertEquals(expected.omegaRadiansPerSecond, chassisSpeeds[2], epsilon);
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("layouts")
+  void toTwist2dMatchesWpilib(Translation2d[] translations) {
+    SwerveKinematics kinematics = new SwerveKinematics(translations);
+    SwerveDriveKinematics wpilib = new SwerveDriveKinematics(translations);
+    SwerveModulePosition[] deltas = new SwerveModulePosition[translations.length];
+    double[] distances = new double[translations.length];
+    double[] angles = new double[translations.length];
+    double[] twist = new double[3];
+    Random random = new Random(6328);
+
+    for (int i = 0; i < iterations; i++) {
+      for (int module = 0; module < translations.length; module++) {
+        distances[module] = random.nextDouble(-0.1, 0.1);
+        angles[module] = random.nextDouble(-Math.PI, Math.PI);
+        deltas[module] =
+            new SwerveModulePosition(distances[module], new Rotation2d(angles[module]));
+      }
+      Twist2d expected = wpilib.toTwist2d(deltas);
+      kinematics.toTwist2d(distances, angles, twist);
+
+      assertEquals(expected.dx, twist[0], epsilon);
+      assertEquals(expected.dy, twist[1], epsilon);
+      assertEquals(expected.dtheta, twist[2], epsilon);
+    }
+  }
+
+  @Test
+  void discretizeMatchesWpilib() {
+    double[] actual = new double[3];
+    Random random = new Random(6328);
+
+    for (int i = 0; i < iterations; i++) {
+      // Every tenth rotation is small enough to use the series expansion
+      ChassisSpeeds speeds = randomChassisSpeeds(random);
+      if (i % 10 == 0) {
+        speeds.omegaRadiansPerSecond = random.nextDouble(-1e-4, 1e-4);
+      }
+      double dt = random.nextDouble(0.005, 0.05);
+      ChassisSpeeds expected = ChassisSpeeds.discretize(speeds, dt);
+      SwerveKinematics.discretize(
+          speeds.vxMetersPerSecond,
+          speeds.vyMetersPerSecond,
+          speeds.omegaRadiansPerSecond,
+          dt,
+          actual);
+
+      assertEquals(expected.vxMetersPerSecond, actual[0], epsilon);
+      assertEquals(expected.vyMetersPerSecond, actual[1], epsilon);
+      assertEquals(expected.omegaRadiansPerSecond, actual[2], epsilon);
+    }
+  }
+
+  private static ChassisSpeeds randomChassisSpeeds(Random random) {
+    return new ChassisSpeeds(
+        random.nextDouble(-5.0, 5.0), random.nextDouble(-5.0, 5.0), random.nextDouble(-10.0, 10.0));
+  }
+
+  private static double angleError(double expected, double actual) {
+    return MathUtil.angleModulus(actual - expected);
+  }
+}
@@ -0,0 +1,170 @@
+// Copyright 2021-2024 FRC 6328
+// http://github.com/Mechanical-Advantage
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// version 3 as published by the Free Software Foundation or
+// available in the root directory of this project.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+
+package frc.robot.subsystems.drive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.wpi.first.math.MathUtil;
+import edu.wpi.first.math.VecBuilder;
+import edu.wpi.first.math.estimator.SwerveDrivePoseEstimator;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.math.geometry.Translation2d;
+import edu.wpi.first.math.kinematics.SwerveDriveKinematics;
+import edu.wpi.first.math.kinematics.SwerveModulePosition;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that SwervePoseEstimator follows WPILib's SwerveDrivePoseEstimator through odometry,
+ * delayed and out of order vision measurements that replay the history, and resets.
+ */
+class SwervePoseEstimatorTest {
+  private static final double epsilon = 1e-9;
+  private static final double odometryPeriodSecs = 0.004;
+  private static final int steps = 2500; // 10 seconds
+  private static final int resetStep = 1200;
+
+  @Test
+  void matchesWpilib() {
+    Translation2d[] translations = Drive.getModuleTranslations();
+    SwerveModulePosition[] positions = new SwerveModulePosition[4];
+    double[] distances = new double[4];
+    double[] angles = new double[4];
+    for (int i = 0; i < 4; i++) {
+      positions[i] = new SwerveModulePosition();
+    }
+    Pose2d initialPose = new Pose2d(1.0, 2.0, Rotation2d.fromDegrees(30.0));
+    SwervePoseEstimator estimator =
+        new SwervePoseEstimator(
+            new SwerveKinematics(translations), new Rotation2d(), positions, initialPose);
+    SwerveDrivePoseEstimator wpilib =
+        new SwerveDrivePoseEstimator(
+            new SwerveDriveKinematics(translations), new Rotation2d(), positions, initialPose);
+
+    Random random = new Random(6328);
+    double gyroRad = 0.0; // Left unwrapped, so the gyro passes through several turns
+    for (int step = 1; step <= steps; step++) {
+      double timestamp = step * odometryPeriodSecs;
+
+      // Move the modules along a smooth path, with noise so odometry disagrees with the gyro
+      double vx = 2.0 * Math.cos(timestamp);
+      double vy = Math.sin(0.7 * timestamp);
+      double omega = 1.5 * Math.sin(0.5 * timestamp) + 2.0;
+      for (int i = 0; i < 4; i++) {
+        double moduleVx = vx - omega * translations[i].getY();
+        double moduleVy = vy + omega * translations[i].getX();
+        distances[i] +=
+            Math.hypot(moduleVx, moduleVy) * odometryPeriodSecs + random.nextGaussian() * 0.001;
+        angles[i] =
+            MathUtil.angleModulus(Math.atan2(moduleVy, moduleVx) + random.nextGaussian() * 0.01);
+        positions[i] = new SwerveModulePosition(distances[i], new Rotation2d(angles[i]));
+      }
+      gyroRad += omega * odometryPeriodSecs + random.nextGaussian() * 0.001;
+
+      if (step == resetStep) {
+        Pose2d pose = new Pose2d(-3.0, 4.0, Rotation2d.fromDegrees(-120.0));
+        estimator.resetPosition(new Rotation2d(gyroRad), positions, pose);
+        wpilib.resetPosition(new Rotation2d(gyroRad), positions, pose);
+        assertPosesEqual(wpilib, estimator);
+
+        // Nothing to blend into until the next update
+        Pose2d vision = new Pose2d(-2.5, 4.5, Rotation2d.fromDegrees(-100.0));
+        estimator.addVisionMeasurement(vision, timestamp);
+        wpilib.addVisionMeasurement(vision, timestamp);
+        assertPosesEqual(wpilib, estimator);
+        continue;
+      }
+
+      // Alternate between the geometry and primitive overloads
+      wpilib.updateWithTime(timestamp, new Rotation2d(gyroRad), positions);
+      if (step % 2 == 0) {
+        estimator.updateWithTime(timestamp, new Rotation2d(gyroRad), positions);
+      } else {
+        estimator.updateWithTime(timestamp, gyroRad, distances, angles);
+      }
+      assertPosesEqual(wpilib, estimator);
+
+      // Vision at 50 Hz with random latency, so measurements arrive out of order, land between
+      // and on odometry records, and replay the history after them
+      if (step % 5 == 0) {
+        double visionTimestamp = timestamp - random.nextDouble(0.0, 0.4);
+        if (step % 15 == 0) {
+          visionTimestamp = Math.round(visionTimestamp / odometryPeriodSecs) * odometryPeriodSecs;
+        }
+        addVision(random, estimator, wpilib, visionTimestamp, step % 10 == 0);
+        assertPosesEqual(wpilib, estimator);
+      }
+
+      // Older than the history, ignored by both
+      if (step % 100 == 0) {
+        addVision(random, estimator, wpilib, timestamp - 2.0, false);
+        assertPosesEqual(wpilib, estimator);
+      }
+
+      // Two measurements at the same timestamp
+      if (step % 125 == 0) {
+        double visionTimestamp = timestamp - 0.1;
+        addVision(random, estimator, wpilib, visionTimestamp, false);
+        addVision(random, estimator, wpilib, visionTimestamp, true);
+        assertPosesEqual(wpilib, estimator);
+      }
+    }
+  }
+
+  /**
+   * Adds a vision measurement near the current estimate to both estimators. WPILib keeps the
+   * standard deviations of a measurement as its new defaults, so default measurements set them on
+   * both estimators first.
+   */
+  private static void addVision(
+      Random random,
+      SwervePoseEstimator estimator,
+      SwerveDrivePoseEstimator wpilib,
+      double timestamp,
+      boolean useDefaultStdDevs) {
+    Pose2d estimate = wpilib.getEstimatedPosition();
+    double x = estimate.getX() + random.nextDouble(-0.3, 0.3);
+    double y = estimate.getY() + random.nextDouble(-0.3, 0.3);
+    double thetaRad =
+        MathUtil.angleModulus(estimate.getRotation().getRadians() + random.nextDouble(-0.2, 0.2));
+    Pose2d vision = new Pose2d(x, y, new Rotation2d(thetaRad));
+    double xyStdDev = random.nextDouble(0.05, 1.0);
+    double thetaStdDev = random.nextDouble(0.05, 1.0);
+
+    if (useDefaultStdDevs) {
+      estimator.setVisionMeasurementStdDevs(xyStdDev, xyStdDev, thetaStdDev);
+      wpilib.setVisionMeasurementStdDevs(VecBuilder.fill(xyStdDev, xyStdDev, thetaStdDev));
+      estimator.addVisionMeasurement(vision, timestamp);
+      wpilib.addVisionMeasurement(vision, timestamp);
+    } else {
+      estimator.addVisionMeasurement(x, y, thetaRad, timestamp, xyStdDev, xyStdDev, thetaStdDev);
+      wpilib.addVisionMeasurement(
+          vision, timestamp, VecBuilder.fill(xyStdDev, xyStdDev, thetaStdDev));
+    }
+  }
+
+  private static void assertPosesEqual(
+      SwerveDrivePoseEstimator expected, SwervePoseEstimator actual) {
+    Pose2d expectedPose = expected.getEstimatedPosition();
+    Pose2d actualPose = actual.getEstimatedPosition();
+    assertEquals(expectedPose.getX(), actualPose.getX(), epsilon);
+    assertEquals(expectedPose.getY(), actualPose.getY(), epsilon);
+    assertEquals(
+        0.0,
+        MathUtil.angleModulus(
+            actualPose.getRotation().getRadians() - expectedPose.getRotation().getRadians()),
+        epsilon);
+  }
+}
@@ -0,0 +1,90 @@
+package frc.robot.subsystems.vision;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import edu.wpi.first.apriltag.AprilTag;
+import edu.wpi.first.hal.HAL;
+import edu.wpi.first.math.geometry.Pose2d;
+import edu.wpi.first.math.geometry.Pose3d;
+import edu.wpi.first.math.geometry.Rotation2d;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import frc.robot.Constants.VisionConstants;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.photonvision.PhotonCamera;
+import org.photonvision.estimation.TargetModel;
+import org.photonvision.simulation.PhotonCameraSim;
+import org.photonvision.simulation.SimCameraProperties;
+import org.photonvision.simulation.VisionTargetSim;
+import org.photonvision.targeting.PhotonPipelineResult;
+
+class VisionThreadTest {
+  private static final double translationToleranceMeters = 0.05;
+  private static final double rotationToleranceRad = Math.toRadians(2.0);
+
+  private NetworkTableInstance networkTables;
+  private PhotonCamera camera;
+  private PhotonCameraSim cameraSim;
+  private VisionThread thread;
+  private final List<VisionTargetSim> targets = new ArrayList<>();
+
+  @BeforeAll
+  static void setupHal() {
+    assertTrue(HAL.initialize(500, 0));
+  }
+
+  @BeforeEach
+  void setup() {
+    networkTables = NetworkTableInstance.create();
+    camera = new PhotonCamera(networkTables, VisionConstants.cameraNames[0]);
+    // A perfectly calibrated camera, so any error comes from the solver
+    cameraSim = new PhotonCameraSim(camera, new SimCameraProperties());
+    thread =
+        new VisionThread(
+            new PhotonCamera[] {camera},
+            VisionConstants.robotToCameras,
+            VisionConstants.fieldLayout);
+    for (AprilTag tag : VisionConstants.fieldLayout.getTags()) {
+      targets.add(new VisionTargetSim(tag.pose, TargetModel.kAprilTag36h11, tag.ID));
+    }
+  }
+
+  @AfterEach
+  void teardown() {
+    cameraSim.close();
+    camera.close();
+    networkTables.close();
+  }
+
+  /** Facing the blue speaker, both of its tags are in view and the solve should be exact. */
+  @Test
+  void solvesKnownPoseFromSimulatedTags() {
+    Pose2d truth = new Pose2d(2.5, 5.3, Rotation2d.fromDegrees(180.0));
+    PhotonPipelineResult result = capture(truth);
+    assertTrue(result.getTargets().size() > 1, "Both speaker tags should be in view");
+
+    Optional<VisionObservation> observation = thread.solve(0, result);
+    assertTrue(observation.isPresent());
+    Pose2d solved = observation.get().pose().toPose2d();
+    assertEquals(truth.getX(), solved.getX(), translationToleranceMeters);
+    assertEquals(truth.getY(), solved.getY(), translationToleranceMeters);
+    assertEquals(
+        0.0, truth.getRotation().minus(solved.getRotation()).getRadians(), rotationToleranceRad);
+    assertEquals(result.getTargets().size(), observation.get().tagCount());
+    assertEquals(1.0, observation.get().timestamp(), 1e-9);
+  }
+
+  /** Renders the frame the camera sees from a robot pose. */
+  private PhotonPipelineResult capture(Pose2d robotPose) {
+    Pose3d cameraPose = new Pose3d(robotPose).plus(VisionConstants.robotToCameras[0]);
+    PhotonPipelineResult result = cameraSim.process(0.0, cameraPose, targets);
+    result.setTimestampSeconds(1.0);
+    return result;
+  }
+}